@@ -32,7 +32,8 @@ CREATE TABLE `tb_blog`  (
   `comments` int(8) UNSIGNED NULL DEFAULT NULL COMMENT '评论数量',
   `create_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP COMMENT '创建时间',
   `update_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP COMMENT '更新时间',
-  PRIMARY KEY (`id`) USING BTREE
+  PRIMARY KEY (`id`) USING BTREE,
+  INDEX `idx_user_create_time`(`user_id`, `create_time`) USING BTREE COMMENT '收件箱裁剪后按关注作者拉取更早的博客'
 ) ENGINE = InnoDB AUTO_INCREMENT = 23 CHARACTER SET = utf8mb4 COLLATE = utf8mb4_general_ci ROW_FORMAT = Compact;
 
 -- ----------------------------
@@ -43,6 +44,25 @@ INSERT INTO `tb_blog` VALUES (5, 1, 2, '人均30💰杭州这家港式茶餐厅
 INSERT INTO `tb_blog` VALUES (6, 10, 1, '杭州周末好去处｜💰50就可以骑马啦🐎', '/imgs/blogs/blog1.jpg', '杭州周末好去处｜💰50就可以骑马啦🐎', 1, 0, '2022-01-11 16:05:47', '2022-03-10 09:21:41');
 INSERT INTO `tb_blog` VALUES (7, 10, 1, '杭州周末好去处｜💰50就可以骑马啦🐎', '/imgs/blogs/blog1.jpg', '杭州周末好去处｜💰50就可以骑马啦🐎', 1, 0, '2022-01-11 16:05:47', '2022-03-10 09:21:42');
 
+-- ----------------------------
+-- Triggers structure for table tb_blog
+-- ----------------------------
+DROP TRIGGER IF EXISTS `trg_blog_insert`;
+CREATE TRIGGER `trg_blog_insert` AFTER INSERT ON `tb_blog` FOR EACH ROW INSERT INTO `tb_cache_outbox` (`table_name`, `row_id`, `op`, `old_type_id`) VALUES ('tb_blog', NEW.id, 'I', NULL);
+
+-- ----------------------------
+-- Triggers structure for table tb_blog
+-- ----------------------------
+DROP TRIGGER IF EXISTS `trg_blog_update`;
+-- 点赞数和评论数的变化由业务代码自行删除缓存 只有内容变化时才写入发件箱
+CREATE TRIGGER `trg_blog_update` AFTER UPDATE ON `tb_blog` FOR EACH ROW INSERT INTO `tb_cache_outbox` (`table_name`, `row_id`, `op`, `old_type_id`) SELECT 'tb_blog', NEW.id, 'U', NULL FROM DUAL WHERE NOT (OLD.shop_id <=> NEW.shop_id AND OLD.user_id <=> NEW.user_id AND OLD.title <=> NEW.title AND OLD.images <=> NEW.images AND OLD.content <=> NEW.content);
+
+-- ----------------------------
+-- Triggers structure for table tb_blog
+-- ----------------------------
+DROP TRIGGER IF EXISTS `trg_blog_delete`;
+CREATE TRIGGER `trg_blog_delete` AFTER DELETE ON `tb_blog` FOR EACH ROW INSERT INTO `tb_cache_outbox` (`table_name`, `row_id`, `op`, `old_type_id`) VALUES ('tb_blog', OLD.id, 'D', NULL);
+
 -- ----------------------------
 -- Table structure for tb_blog_comments
 -- ----------------------------
@@ -65,6 +85,20 @@ CREATE TABLE `tb_blog_comments`  (
 -- Records of tb_blog_comments
 -- ----------------------------
 
+-- ----------------------------
+-- Table structure for tb_cache_outbox
+-- ----------------------------
+DROP TABLE IF EXISTS `tb_cache_outbox`;
+CREATE TABLE `tb_cache_outbox`  (
+  `id` bigint(20) UNSIGNED NOT NULL AUTO_INCREMENT COMMENT '主键',
+  `table_name` varchar(64) CHARACTER SET utf8mb4 COLLATE utf8mb4_general_ci NOT NULL COMMENT '发生变更的表',
+  `row_id` bigint(20) UNSIGNED NOT NULL COMMENT '发生变更的行id',
+  `op` char(1) CHARACTER SET utf8mb4 COLLATE utf8mb4_general_ci NOT NULL COMMENT '操作类型，I：新增；U：修改；D：删除',
+  `old_type_id` bigint(20) UNSIGNED NULL DEFAULT NULL COMMENT '变更前的商铺类型id，仅tb_shop',
+  `create_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP COMMENT '创建时间',
+  PRIMARY KEY (`id`) USING BTREE
+) ENGINE = InnoDB CHARACTER SET = utf8mb4 COLLATE = utf8mb4_general_ci COMMENT = '缓存失效事件表，由触发器在业务事务内写入' ROW_FORMAT = Compact;
+
 -- ----------------------------
 -- Table structure for tb_follow
 -- ----------------------------
@@ -74,7 +108,8 @@ CREATE TABLE `tb_follow`  (
   `user_id` bigint(20) UNSIGNED NOT NULL COMMENT '用户id',
   `follow_user_id` bigint(20) UNSIGNED NOT NULL COMMENT '关联的用户id',
   `create_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP COMMENT '创建时间',
-  PRIMARY KEY (`id`) USING BTREE
+  PRIMARY KEY (`id`) USING BTREE,
+  INDEX `idx_follow_user_id`(`follow_user_id`) USING BTREE COMMENT '按作者游标分页查询粉丝 二级索引隐含主键'
 ) ENGINE = InnoDB AUTO_INCREMENT = 1 CHARACTER SET = utf8mb4 COLLATE = utf8mb4_general_ci ROW_FORMAT = Compact;
 
 -- ----------------------------
@@ -141,6 +176,24 @@ INSERT INTO `tb_shop` VALUES (12, '魅(杭州远洋乐堤港店)', 2, 'https://p
 INSERT INTO `tb_shop` VALUES (13, '讴K拉量贩KTV(北城天地店)', 2, 'https://p1.meituan.net/merchantpic/598c83a8c0d06fe79ca01056e214d345875600.jpg,https://qcloud.dpfile.com/pc/HhvI0YyocYHRfGwJWqPQr34hRGRl4cWdvlNwn3dqghvi4WXlM2FY1te0-7pE3Wb9_Gd2X_f-v9T8Yj4uLt25Gg.jpg,https://qcloud.dpfile.com/pc/F5ZVzZaXFE27kvQzPnaL4V8O9QCpVw2nkzGrxZE8BqXgkfyTpNExfNG5CEPQX4pjGybIjx5eX6WNgCPvcASYAw.jpg', 'D32天阳购物中心', '湖州街567号北城天地5层', 120.130453, 30.327655, 58, 0000018997, 0000001857, 41, '12:00-02:00', '2021-12-22 20:38:54', '2021-12-22 20:40:04');
 INSERT INTO `tb_shop` VALUES (14, '星聚会KTV(拱墅区万达店)', 2, 'https://p0.meituan.net/dpmerchantpic/f4cd6d8d4eb1959c3ea826aa05a552c01840451.jpg,https://p0.meituan.net/dpmerchantpic/2efc07aed856a8ab0fc75c86f4b9b0061655777.jpg,https://qcloud.dpfile.com/pc/zWfzzIorCohKT0bFwsfAlHuayWjI6DBEMPHHncmz36EEMU9f48PuD9VxLLDAjdoU_Gd2X_f-v9T8Yj4uLt25Gg.jpg', '北部新城', '杭行路666号万达广场C座1-2F', 120.128958, 30.337252, 60, 0000017771, 0000000685, 47, '10:00-22:00', '2021-12-22 20:48:54', '2021-12-22 20:48:54');
 
+-- ----------------------------
+-- Triggers structure for table tb_shop
+-- ----------------------------
+DROP TRIGGER IF EXISTS `trg_shop_insert`;
+CREATE TRIGGER `trg_shop_insert` AFTER INSERT ON `tb_shop` FOR EACH ROW INSERT INTO `tb_cache_outbox` (`table_name`, `row_id`, `op`, `old_type_id`) VALUES ('tb_shop', NEW.id, 'I', NULL);
+
+-- ----------------------------
+-- Triggers structure for table tb_shop
+-- ----------------------------
+DROP TRIGGER IF EXISTS `trg_shop_update`;
+CREATE TRIGGER `trg_shop_update` AFTER UPDATE ON `tb_shop` FOR EACH ROW INSERT INTO `tb_cache_outbox` (`table_name`, `row_id`, `op`, `old_type_id`) VALUES ('tb_shop', NEW.id, 'U', OLD.type_id);
+
+-- ----------------------------
+-- Triggers structure for table tb_shop
+-- ----------------------------
+DROP TRIGGER IF EXISTS `trg_shop_delete`;
+CREATE TRIGGER `trg_shop_delete` AFTER DELETE ON `tb_shop` FOR EACH ROW INSERT INTO `tb_cache_outbox` (`table_name`, `row_id`, `op`, `old_type_id`) VALUES ('tb_shop', OLD.id, 'D', OLD.type_id);
+
 -- ----------------------------
 -- Table structure for tb_shop_type
 -- ----------------------------
@@ -169,6 +222,24 @@ INSERT INTO `tb_shop_type` VALUES (8, '酒吧', '/types/jiuba.png', 8, '2021-12-
 INSERT INTO `tb_shop_type` VALUES (9, '轰趴馆', '/types/hpg.png', 9, '2021-12-22 20:20:08', '2021-12-23 11:24:31');
 INSERT INTO `tb_shop_type` VALUES (10, '美睫·美甲', '/types/mjmj.png', 4, '2021-12-22 20:21:46', '2021-12-23 11:24:31');
 
+-- ----------------------------
+-- Triggers structure for table tb_shop_type
+-- ----------------------------
+DROP TRIGGER IF EXISTS `trg_shop_type_insert`;
+CREATE TRIGGER `trg_shop_type_insert` AFTER INSERT ON `tb_shop_type` FOR EACH ROW INSERT INTO `tb_cache_outbox` (`table_name`, `row_id`, `op`, `old_type_id`) VALUES ('tb_shop_type', NEW.id, 'I', NULL);
+
+-- ----------------------------
+-- Triggers structure for table tb_shop_type
+-- ----------------------------
+DROP TRIGGER IF EXISTS `trg_shop_type_update`;
+CREATE TRIGGER `trg_shop_type_update` AFTER UPDATE ON `tb_shop_type` FOR EACH ROW INSERT INTO `tb_cache_outbox` (`table_name`, `row_id`, `op`, `old_type_id`) VALUES ('tb_shop_type', NEW.id, 'U', NULL);
+
+-- ----------------------------
+-- Triggers structure for table tb_shop_type
+-- ----------------------------
+DROP TRIGGER IF EXISTS `trg_shop_type_delete`;
+CREATE TRIGGER `trg_shop_type_delete` AFTER DELETE ON `tb_shop_type` FOR EACH ROW INSERT INTO `tb_cache_outbox` (`table_name`, `row_id`, `op`, `old_type_id`) VALUES ('tb_shop_type', OLD.id, 'D', NULL);
+
 -- ----------------------------
 -- Table structure for tb_sign
 -- ----------------------------
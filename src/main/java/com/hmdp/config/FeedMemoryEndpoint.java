@@ -0,0 +1,27 @@
+package com.hmdp.config;
+
+import com.hmdp.job.FeedTrimJob;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.Map;
+
+/**
+ * 收件箱裁剪报告端点 /actuator/feedmemory
+ *
+ * @author CHEN
+ * @date 2022/11/07
+ */
+@Component
+@Endpoint(id = "feedmemory")
+public class FeedMemoryEndpoint {
+    @Resource
+    private FeedTrimJob feedTrimJob;
+
+    @ReadOperation
+    public Map<String, Object> report() {
+        return feedTrimJob.getLastReport();
+    }
+}
@@ -0,0 +1,32 @@
+package com.hmdp.config;
+
+import com.hmdp.utils.HotKeyDetector;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 热点key监控端点 /actuator/hotkeys
+ *
+ * @author CHEN
+ * @date 2022/10/27
+ */
+@Component
+@Endpoint(id = "hotkeys")
+public class HotKeyEndpoint {
+    @Resource
+    private HotKeyDetector hotKeyDetector;
+
+    @ReadOperation
+    public Map<String, Object> hotKeys() {
+        Map<String, Object> result = new HashMap<>(4);
+        result.put("threshold", hotKeyDetector.getThreshold());
+        result.put("windowSeconds", hotKeyDetector.getWindowSeconds());
+        result.put("keys", hotKeyDetector.hotKeys());
+        return result;
+    }
+}
@@ -2,6 +2,8 @@ package com.hmdp.config;
 
 import com.hmdp.interceptor.LoginInterceptor;
 import com.hmdp.interceptor.RefreshTokenInterceptor;
+import com.hmdp.interceptor.WarmUpInterceptor;
+import com.hmdp.job.CacheWarmUpRunner;
 import org.springframework.boot.autoconfigure.web.servlet.WebMvcAutoConfiguration;
 import org.springframework.cache.annotation.CacheConfig;
 import org.springframework.context.annotation.Configuration;
@@ -21,9 +23,17 @@ import javax.annotation.Resource;
 public class MvcConfig implements WebMvcConfigurer {
     @Resource
     private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private CacheWarmUpRunner cacheWarmUpRunner;
 
     @Override
     public void addInterceptors(InterceptorRegistry registry) {
+        //预热拦截器
+        registry
+                .addInterceptor(new WarmUpInterceptor(cacheWarmUpRunner))
+                .addPathPatterns("/**")
+                .excludePathPatterns("/actuator/**")
+                .order(-1);
         //登陆拦截器
         registry
                 .addInterceptor(new LoginInterceptor())
@@ -0,0 +1,28 @@
+package com.hmdp.config;
+
+import com.hmdp.job.VoucherOrderConsumer;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.WriteOperation;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+
+/**
+ * 订单死信队列管理端点 POST /actuator/orderdlq 重新投递死信队列中的订单消息
+ * 只通过管理端口访问 不对普通用户开放
+ *
+ * @author CHEN
+ * @date 2022/10/31
+ */
+@Component
+@Endpoint(id = "orderdlq")
+public class OrderDeadLetterEndpoint {
+    @Resource
+    private VoucherOrderConsumer voucherOrderConsumer;
+
+    @WriteOperation
+    public int replay(@Nullable Integer count) {
+        return voucherOrderConsumer.replayDeadLetters(count == null ? 100 : count);
+    }
+}
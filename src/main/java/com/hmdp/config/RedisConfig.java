@@ -0,0 +1,55 @@
+package com.hmdp.config;
+
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.CacheCodec;
+import com.hmdp.utils.JsonCacheCodec;
+import com.hmdp.utils.KryoCacheCodec;
+import com.hmdp.utils.SeckillGate;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+
+import static com.hmdp.utils.RedisConstants.BLOOM_FILTER_CHANNEL;
+import static com.hmdp.utils.RedisConstants.CACHE_INVALIDATE_CHANNEL;
+import static com.hmdp.utils.RedisConstants.SECKILL_SOLD_OUT_CHANNEL;
+
+/**
+ * redis配置
+ *
+ * @author CHEN
+ * @date 2022/10/20
+ */
+@Configuration
+public class RedisConfig {
+    /**
+     * 缓存编解码器 json兼容旧数据 kryo体积更小解析更快
+     *
+     * @param codec 编解码器名称
+     * @return {@link CacheCodec}
+     */
+    @Bean
+    public CacheCodec cacheCodec(@Value("${hmdp.cache.codec:json}") String codec) {
+        if ("kryo".equalsIgnoreCase(codec)) {
+            return new KryoCacheCodec();
+        }
+        return new JsonCacheCodec();
+    }
+
+    @Bean
+    public RedisMessageListenerContainer redisMessageListenerContainer(RedisConnectionFactory connectionFactory
+            , CacheClient cacheClient
+            , SeckillGate seckillGate) {
+        RedisMessageListenerContainer container = new RedisMessageListenerContainer();
+        container.setConnectionFactory(connectionFactory);
+        //订阅本地缓存失效通知
+        container.addMessageListener(cacheClient, new ChannelTopic(CACHE_INVALIDATE_CHANNEL));
+        //订阅布隆过滤器新增通知
+        container.addMessageListener(cacheClient, new ChannelTopic(BLOOM_FILTER_CHANNEL));
+        //订阅秒杀券售罄通知
+        container.addMessageListener(seckillGate, new ChannelTopic(SECKILL_SOLD_OUT_CHANNEL));
+        return container;
+    }
+}
@@ -44,8 +44,7 @@ public class ShopController {
     @PostMapping
     public Result saveShop(@RequestBody Shop shop) {
         // 写入数据库
-        shopService.save(shop);
-        return Result.ok();
+        return shopService.saveShop(shop);
     }
 
     /**
@@ -9,6 +9,7 @@ import com.hmdp.entity.User;
 import com.hmdp.entity.UserInfo;
 import com.hmdp.service.IUserInfoService;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.CacheClient;
 import com.hmdp.utils.UserHolder;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.web.bind.annotation.*;
@@ -16,6 +17,8 @@ import org.springframework.web.bind.annotation.*;
 import javax.annotation.Resource;
 import javax.servlet.http.HttpSession;
 
+import static com.hmdp.utils.RedisConstants.CACHE_USER_KEY;
+
 /**
  * <p>
  * 前端控制器
@@ -35,6 +38,9 @@ public class UserController {
     @Resource
     private IUserInfoService userInfoService;
 
+    @Resource
+    private CacheClient cacheClient;
+
     /**
      * 发送手机验证码
      */
@@ -85,6 +91,10 @@ public class UserController {
     }
     @GetMapping("/{id}")
     public Result queryUserById(@PathVariable("id")Long userId){
+        //布隆过滤器判断
+        if (!cacheClient.mightContain(CACHE_USER_KEY, userId)) {
+            return Result.ok();
+        }
         User user = userService.getById(userId);
         if (user==null){
             return Result.ok();
@@ -0,0 +1,65 @@
+package com.hmdp.entity;
+
+import com.baomidou.mybatisplus.annotation.IdType;
+import com.baomidou.mybatisplus.annotation.TableId;
+import com.baomidou.mybatisplus.annotation.TableName;
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+import lombok.experimental.Accessors;
+
+import java.io.Serializable;
+import java.time.LocalDateTime;
+
+/**
+ * <p>
+ * 缓存失效事件表 由触发器在业务事务内写入
+ * </p>
+ *
+ * @author CHEN
+ * @since 2022-10-28
+ */
+@Data
+@EqualsAndHashCode(callSuper = false)
+@Accessors(chain = true)
+@TableName("tb_cache_outbox")
+public class CacheOutbox implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    public static final String OP_INSERT = "I";
+    public static final String OP_UPDATE = "U";
+    public static final String OP_DELETE = "D";
+
+    /**
+     * 主键
+     */
+    @TableId(value = "id", type = IdType.AUTO)
+    private Long id;
+
+    /**
+     * 发生变更的表
+     */
+    private String tableName;
+
+    /**
+     * 发生变更的行id
+     */
+    private Long rowId;
+
+    /**
+     * 操作类型，I：新增；U：修改；D：删除
+     */
+    private String op;
+
+    /**
+     * 变更前的商铺类型id，仅tb_shop
+     */
+    private Long oldTypeId;
+
+    /**
+     * 创建时间
+     */
+    private LocalDateTime createTime;
+
+
+}
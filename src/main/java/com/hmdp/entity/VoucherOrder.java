@@ -26,6 +26,9 @@ public class VoucherOrder implements Serializable {
 
     private static final long serialVersionUID = 1L;
 
+    public static final Integer STATUS_UNPAID = 1;
+    public static final Integer STATUS_CANCELLED = 4;
+
     /**
      * 主键
      */
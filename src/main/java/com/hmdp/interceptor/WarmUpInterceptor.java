@@ -0,0 +1,41 @@
+package com.hmdp.interceptor;
+
+import cn.hutool.json.JSONUtil;
+import com.hmdp.dto.Result;
+import com.hmdp.job.CacheWarmUpRunner;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.web.servlet.HandlerInterceptor;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 预热拦截器 缓存预热完成前返回503 由负载均衡重试其他节点
+ * <p>
+ * 预热在ApplicationRunner中同步执行 actuator的readiness探针同样在预热完成后才变为ACCEPTING_TRAFFIC
+ *
+ * @author CHEN
+ * @date 2022/10/29
+ */
+public class WarmUpInterceptor implements HandlerInterceptor {
+    private final CacheWarmUpRunner cacheWarmUpRunner;
+
+    public WarmUpInterceptor(CacheWarmUpRunner cacheWarmUpRunner) {
+        this.cacheWarmUpRunner = cacheWarmUpRunner;
+    }
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        if (cacheWarmUpRunner.isReady()) {
+            return true;
+        }
+        response.setStatus(HttpStatus.SERVICE_UNAVAILABLE.value());
+        response.setHeader("Retry-After", "1");
+        response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+        response.getWriter().write(JSONUtil.toJsonStr(Result.fail("服务预热中 请稍后重试")));
+        return false;
+    }
+}
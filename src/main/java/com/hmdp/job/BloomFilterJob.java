@@ -0,0 +1,126 @@
+package com.hmdp.job;
+
+import com.hmdp.entity.Blog;
+import com.hmdp.entity.Shop;
+import com.hmdp.entity.User;
+import com.hmdp.service.IBlogService;
+import com.hmdp.service.IShopService;
+import com.hmdp.service.IUserService;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.LocalBloomFilter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.List;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 布隆过滤器构建任务
+ * <p>
+ * 启动时按id分批扫描tb_shop/tb_blog/tb_user构建 之后定时全量重建(清理已删除的id 补齐漏掉的通知)
+ * 重建期间新增的id同时写入旧的和正在构建的过滤器 替换后不会被误判为不存在
+ * 定时从 bloom:added 补读其他节点新增的id 补上漏掉的发布订阅通知
+ *
+ * @author CHEN
+ * @date 2022/10/23
+ */
+@Slf4j
+@Component
+public class BloomFilterJob implements ApplicationRunner {
+    /**
+     * 每批扫描的行数
+     */
+    private static final int BATCH_SIZE = 1000;
+
+    @Resource
+    private CacheClient cacheClient;
+    @Resource
+    private IShopService shopService;
+    @Resource
+    private IBlogService blogService;
+    @Resource
+    private IUserService userService;
+    @Value("${hmdp.bloom.expected-insertions:1000000}")
+    private long expectedInsertions;
+    @Value("${hmdp.bloom.fpp:0.01}")
+    private double fpp;
+
+    @Override
+    public void run(ApplicationArguments args) {
+        rebuild();
+    }
+
+    /**
+     * 重建所有布隆过滤器
+     */
+    @Scheduled(initialDelayString = "${hmdp.bloom.rebuild-interval:3600000}"
+            , fixedDelayString = "${hmdp.bloom.rebuild-interval:3600000}")
+    public void rebuild() {
+        build(CACHE_SHOP_KEY, lastId -> shopService.lambdaQuery()
+                .select(Shop::getId)
+                .gt(Shop::getId, lastId)
+                .orderByAsc(Shop::getId)
+                .last("limit " + BATCH_SIZE)
+                .list()
+                .stream().map(Shop::getId).collect(Collectors.toList()));
+        build(CACHE_BLOG_KEY, lastId -> blogService.lambdaQuery()
+                .select(Blog::getId)
+                .gt(Blog::getId, lastId)
+                .orderByAsc(Blog::getId)
+                .last("limit " + BATCH_SIZE)
+                .list()
+                .stream().map(Blog::getId).collect(Collectors.toList()));
+        build(CACHE_USER_KEY, lastId -> userService.lambdaQuery()
+                .select(User::getId)
+                .gt(User::getId, lastId)
+                .orderByAsc(User::getId)
+                .last("limit " + BATCH_SIZE)
+                .list()
+                .stream().map(User::getId).collect(Collectors.toList()));
+    }
+
+    /**
+     * 补读其他节点新增的id
+     */
+    @Scheduled(fixedDelayString = "${hmdp.bloom.resync-interval:5000}")
+    public void resync() {
+        cacheClient.resyncBloomFilters();
+    }
+
+    /**
+     * 按id游标分批加载 构建完成后替换旧的过滤器
+     *
+     * @param keyPrefix  关键前缀
+     * @param pageLoader 查询大于lastId的一批id
+     */
+    private void build(String keyPrefix, Function<Long, List<Long>> pageLoader) {
+        long begin = System.currentTimeMillis();
+        LocalBloomFilter bloomFilter = new LocalBloomFilter(expectedInsertions, fpp);
+        //扫描期间新增的id同时写入新的过滤器
+        cacheClient.beginBloomFilterBuild(keyPrefix, bloomFilter);
+        long lastId = 0L;
+        while (true) {
+            List<Long> ids = pageLoader.apply(lastId);
+            if (ids.isEmpty()) {
+                break;
+            }
+            ids.forEach(bloomFilter::put);
+            lastId = ids.get(ids.size() - 1);
+        }
+        cacheClient.registerBloomFilter(keyPrefix, bloomFilter);
+        log.info("布隆过滤器构建完成 prefix:{} 数量:{} 内存:{}B 误判率:{} 耗时:{}ms"
+                , keyPrefix
+                , bloomFilter.getInsertions()
+                , bloomFilter.memoryBytes()
+                , bloomFilter.currentFpp()
+                , System.currentTimeMillis() - begin);
+    }
+}
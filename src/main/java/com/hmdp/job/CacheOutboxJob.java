@@ -0,0 +1,192 @@
+package com.hmdp.job;
+
+import cn.hutool.core.thread.ThreadFactoryBuilder;
+import com.hmdp.entity.CacheOutbox;
+import com.hmdp.entity.Shop;
+import com.hmdp.service.ICacheOutboxService;
+import com.hmdp.service.IShopService;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.HotBlogClient;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.geo.Point;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 缓存失效任务
+ * <p>
+ * tb_shop/tb_blog/tb_shop_type上的触发器在业务事务内写入tb_cache_outbox 事务提交后才可见
+ * 本任务轮询事件表 批量删除cache:shop:* / cache:blog:* / cache:type 并按最新数据修正shop:geo:*
+ * 删除后延迟一段时间再删一次 覆盖并发读在提交前读到旧值又写回缓存的情况
+ * 处理完的事件直接删除 下次总是从表头读取 不会漏掉id较小但提交较晚的事件
+ * 多个节点通过分布式锁保证同一时间只有一个节点处理 本地缓存由失效通知在所有节点上清除
+ *
+ * @author CHEN
+ * @date 2022/10/28
+ */
+@Slf4j
+@Component
+public class CacheOutboxJob implements DisposableBean {
+    private static final String LOCK_KEY = CACHE_LOCK_KEY + "cache:outbox";
+    private static final String TABLE_SHOP = "tb_shop";
+    private static final String TABLE_BLOG = "tb_blog";
+    private static final String TABLE_SHOP_TYPE = "tb_shop_type";
+
+    @Resource
+    private ICacheOutboxService cacheOutboxService;
+    @Resource
+    private IShopService shopService;
+    @Resource
+    private CacheClient cacheClient;
+    @Resource
+    private HotBlogClient hotBlogClient;
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private RedissonClient redissonClient;
+    @Value("${hmdp.cache.outbox.batch-size:500}")
+    private int batchSize;
+    @Value("${hmdp.cache.outbox.double-delete-delay:1000}")
+    private long doubleDeleteDelay;
+
+    /**
+     * 延迟双删
+     */
+    private final ScheduledExecutorService doubleDeleteExecutor = Executors.newSingleThreadScheduledExecutor(
+            ThreadFactoryBuilder.create().setNamePrefix("cache-double-delete-").setDaemon(true).build());
+
+    @Scheduled(fixedDelayString = "${hmdp.cache.outbox.interval:500}")
+    public void poll() {
+        RLock lock = redissonClient.getLock(LOCK_KEY);
+        if (!lock.tryLock()) {
+            //其他节点正在处理
+            return;
+        }
+        try {
+            List<CacheOutbox> events;
+            do {
+                events = cacheOutboxService.lambdaQuery()
+                        .orderByAsc(CacheOutbox::getId)
+                        .last("limit " + batchSize)
+                        .list();
+                if (events.isEmpty()) {
+                    break;
+                }
+                handle(events);
+                cacheOutboxService.removeByIds(events.stream().map(CacheOutbox::getId).collect(Collectors.toList()));
+            } while (events.size() == batchSize);
+        } catch (Exception e) {
+            //事件未删除 下次重试
+            log.error("处理缓存失效事件失败", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 处理一批事件 同一个key只删除一次
+     *
+     * @param events 事件
+     */
+    private void handle(List<CacheOutbox> events) {
+        Set<String> keys = new LinkedHashSet<>();
+        Set<Long> shopIds = new LinkedHashSet<>();
+        //商铺id -> 变更前的类型(同一批内可能多次修改类型)
+        Map<Long, Set<Long>> oldTypeIds = new HashMap<>();
+        List<Long> deletedBlogIds = new ArrayList<>();
+        for (CacheOutbox event : events) {
+            Long id = event.getRowId();
+            switch (event.getTableName()) {
+                case TABLE_SHOP:
+                    keys.add(CACHE_SHOP_KEY + id);
+                    shopIds.add(id);
+                    if (event.getOldTypeId() != null) {
+                        oldTypeIds.computeIfAbsent(id, k -> new HashSet<>()).add(event.getOldTypeId());
+                    }
+                    if (CacheOutbox.OP_INSERT.equals(event.getOp())) {
+                        cacheClient.addToBloomFilter(CACHE_SHOP_KEY, id);
+                    }
+                    break;
+                case TABLE_BLOG:
+                    keys.add(CACHE_BLOG_KEY + id);
+                    if (CacheOutbox.OP_INSERT.equals(event.getOp())) {
+                        cacheClient.addToBloomFilter(CACHE_BLOG_KEY, id);
+                    } else if (CacheOutbox.OP_DELETE.equals(event.getOp())) {
+                        deletedBlogIds.add(id);
+                    }
+                    break;
+                case TABLE_SHOP_TYPE:
+                    keys.add(CACHE_TYPE_KEY);
+                    break;
+                default:
+                    log.warn("未知的缓存失效事件 table:{} id:{}", event.getTableName(), id);
+            }
+        }
+        refreshGeo(shopIds, oldTypeIds);
+        hotBlogClient.remove(deletedBlogIds);
+        cacheClient.delete(keys);
+        doubleDeleteExecutor.schedule(() -> {
+            try {
+                cacheClient.delete(keys);
+            } catch (Exception e) {
+                log.warn("延迟删除缓存失败 数量:{}", keys.size(), e);
+            }
+        }, doubleDeleteDelay, TimeUnit.MILLISECONDS);
+        log.debug("处理缓存失效事件 数量:{} 删除key:{}", events.size(), keys.size());
+    }
+
+    /**
+     * 按数据库最新数据修正商铺坐标 类型变化时从旧类型移除 商铺已删除时从所有旧类型移除
+     *
+     * @param shopIds    商铺id
+     * @param oldTypeIds 变更前的类型
+     */
+    private void refreshGeo(Set<Long> shopIds, Map<Long, Set<Long>> oldTypeIds) {
+        if (shopIds.isEmpty()) {
+            return;
+        }
+        Map<Long, Shop> shopMap = shopService.lambdaQuery()
+                .select(Shop::getId, Shop::getTypeId, Shop::getX, Shop::getY)
+                .in(Shop::getId, shopIds)
+                .list()
+                .stream().collect(Collectors.toMap(Shop::getId, Function.identity()));
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Long id : shopIds) {
+                byte[] member = id.toString().getBytes(StandardCharsets.UTF_8);
+                Shop shop = shopMap.get(id);
+                for (Long oldTypeId : oldTypeIds.getOrDefault(id, Collections.emptySet())) {
+                    if (shop == null || !oldTypeId.equals(shop.getTypeId())) {
+                        connection.zSetCommands().zRem((SHOP_GEO_KEY + oldTypeId).getBytes(StandardCharsets.UTF_8), member);
+                    }
+                }
+                if (shop != null && shop.getX() != null && shop.getY() != null) {
+                    connection.geoCommands().geoAdd((SHOP_GEO_KEY + shop.getTypeId()).getBytes(StandardCharsets.UTF_8)
+                            , new Point(shop.getX(), shop.getY()), member);
+                }
+            }
+            return null;
+        });
+    }
+
+    @Override
+    public void destroy() {
+        doubleDeleteExecutor.shutdown();
+    }
+}
@@ -0,0 +1,24 @@
+package com.hmdp.job;
+
+import com.hmdp.utils.CacheClient;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+
+/**
+ * 缓存提前刷新任务
+ *
+ * @author CHEN
+ * @date 2022/10/26
+ */
+@Component
+public class CacheRefreshAheadJob {
+    @Resource
+    private CacheClient cacheClient;
+
+    @Scheduled(fixedDelayString = "${hmdp.cache.refresh-ahead.interval:1000}")
+    public void refreshAhead() {
+        cacheClient.refreshAhead();
+    }
+}
@@ -0,0 +1,218 @@
+package com.hmdp.job;
+
+import cn.hutool.core.thread.ThreadFactoryBuilder;
+import cn.hutool.core.util.IdUtil;
+import cn.hutool.json.JSONUtil;
+import com.hmdp.entity.Blog;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.Shop;
+import com.hmdp.entity.ShopType;
+import com.hmdp.service.IBlogService;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IShopService;
+import com.hmdp.service.IShopTypeService;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.HotBlogClient;
+import com.hmdp.utils.SeckillStockClient;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.data.geo.Point;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 缓存预热
+ * <p>
+ * 启动时按主键游标分批扫描tb_shop/tb_shop_type/tb_seckill_voucher/tb_blog 每批通过管道写入
+ * cache:shop:*(逻辑过期) shop:geo:{typeId} cache:type seckill:stock:* blog:hot:*
+ * 各张表在预热线程池中并行处理 预热完成前{@link com.hmdp.interceptor.WarmUpInterceptor}拒绝业务请求
+ * 秒杀库存按已有的分片方式使用SETNX写入 不覆盖已经在扣减的库存
+ *
+ * @author CHEN
+ * @date 2022/10/29
+ */
+@Slf4j
+@Component
+@Order(Ordered.HIGHEST_PRECEDENCE)
+public class CacheWarmUpRunner implements ApplicationRunner {
+    @Resource
+    private IShopService shopService;
+    @Resource
+    private IShopTypeService shopTypeService;
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+    @Resource
+    private CacheClient cacheClient;
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private SeckillStockClient seckillStockClient;
+    @Resource
+    private IBlogService blogService;
+    @Resource
+    private HotBlogClient hotBlogClient;
+    @Value("${hmdp.warm-up.enabled:true}")
+    private boolean enabled;
+    @Value("${hmdp.warm-up.parallelism:3}")
+    private int parallelism;
+    @Value("${hmdp.warm-up.batch-size:500}")
+    private int batchSize;
+
+    private volatile boolean ready;
+
+    /**
+     * 预热是否完成 预热失败也视为完成(退化为按需加载)
+     *
+     * @return boolean
+     */
+    public boolean isReady() {
+        return ready;
+    }
+
+    @Override
+    public void run(ApplicationArguments args) {
+        if (!enabled) {
+            ready = true;
+            return;
+        }
+        long begin = System.currentTimeMillis();
+        ExecutorService executor = new ThreadPoolExecutor(parallelism, parallelism
+                , 0L, TimeUnit.MILLISECONDS
+                , new LinkedBlockingQueue<>()
+                , ThreadFactoryBuilder.create().setNamePrefix("cache-warm-up-").build());
+        try {
+            CompletableFuture.allOf(
+                    CompletableFuture.runAsync(this::warmUpShop, executor),
+                    CompletableFuture.runAsync(this::warmUpShopType, executor),
+                    CompletableFuture.runAsync(this::warmUpSeckillStock, executor),
+                    CompletableFuture.runAsync(this::warmUpHotBlog, executor)
+            ).join();
+            log.info("缓存预热完成 耗时:{}ms", System.currentTimeMillis() - begin);
+        } catch (Exception e) {
+            log.error("缓存预热失败 未预热的数据将在访问时加载", e);
+        } finally {
+            executor.shutdown();
+            ready = true;
+        }
+    }
+
+    /**
+     * 预热商铺缓存和商铺坐标
+     */
+    private void warmUpShop() {
+        long count = scan(lastId -> shopService.lambdaQuery()
+                .gt(Shop::getId, lastId)
+                .orderByAsc(Shop::getId)
+                .last("limit " + batchSize)
+                .list(), Shop::getId, shops -> {
+            Map<String, Shop> values = new LinkedHashMap<>(shops.size() * 2);
+            shops.forEach(shop -> values.put(CACHE_SHOP_KEY + shop.getId(), shop));
+            cacheClient.setWithLogicalExpire(values, CACHE_SHOP_TTL, TimeUnit.MINUTES);
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (Shop shop : shops) {
+                    if (shop.getX() == null || shop.getY() == null) {
+                        continue;
+                    }
+                    connection.geoCommands().geoAdd((SHOP_GEO_KEY + shop.getTypeId()).getBytes(StandardCharsets.UTF_8)
+                            , new Point(shop.getX(), shop.getY())
+                            , shop.getId().toString().getBytes(StandardCharsets.UTF_8));
+                }
+                return null;
+            });
+        });
+        log.info("商铺预热完成 数量:{}", count);
+    }
+
+    /**
+     * 预热商铺类型列表 写入临时key后RENAME整体替换 其他节点不会读到空列表
+     */
+    private void warmUpShopType() {
+        List<ShopType> typeList = shopTypeService.query().orderByAsc("sort").list();
+        if (typeList.isEmpty()) {
+            return;
+        }
+        byte[] key = CACHE_TYPE_KEY.getBytes(StandardCharsets.UTF_8);
+        //多个节点同时启动时各自使用不同的临时key
+        byte[] tmpKey = (CACHE_TYPE_KEY + ":tmp:" + IdUtil.fastSimpleUUID()).getBytes(StandardCharsets.UTF_8);
+        byte[][] values = typeList.stream()
+                .map(type -> JSONUtil.toJsonStr(type).getBytes(StandardCharsets.UTF_8))
+                .toArray(byte[][]::new);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            connection.listCommands().rPush(tmpKey, values);
+            connection.keyCommands().rename(tmpKey, key);
+            return null;
+        });
+        log.info("商铺类型预热完成 数量:{}", typeList.size());
+    }
+
+    /**
+     * 预热未结束的秒杀券库存
+     */
+    private void warmUpSeckillStock() {
+        LocalDateTime now = LocalDateTime.now();
+        long count = scan(lastId -> seckillVoucherService.lambdaQuery()
+                .gt(SeckillVoucher::getVoucherId, lastId)
+                .gt(SeckillVoucher::getEndTime, now)
+                .orderByAsc(SeckillVoucher::getVoucherId)
+                .last("limit " + batchSize)
+                .list(), SeckillVoucher::getVoucherId, seckillStockClient::restoreStock);
+        log.info("秒杀库存预热完成 数量:{}", count);
+    }
+
+    /**
+     * 预热热门博客排行 只查询点赞数和发布时间
+     */
+    private void warmUpHotBlog() {
+        long count = scan(lastId -> blogService.lambdaQuery()
+                .select(Blog::getId, Blog::getLiked, Blog::getCreateTime)
+                .gt(Blog::getId, lastId)
+                .orderByAsc(Blog::getId)
+                .last("limit " + batchSize)
+                .list(), Blog::getId, hotBlogClient::seed);
+        hotBlogClient.rebuildRank();
+        log.info("热门博客预热完成 数量:{}", count);
+    }
+
+    /**
+     * 按主键游标分批扫描
+     *
+     * @param pageLoader 查询主键大于lastId的一批数据
+     * @param idGetter   主键
+     * @param writer     写入一批数据
+     * @return 扫描的总数
+     */
+    private <T> long scan(Function<Long, List<T>> pageLoader, Function<T, Long> idGetter, Consumer<List<T>> writer) {
+        long count = 0;
+        long lastId = 0L;
+        while (true) {
+            List<T> page = pageLoader.apply(lastId);
+            if (page.isEmpty()) {
+                return count;
+            }
+            writer.accept(page);
+            count += page.size();
+            lastId = idGetter.apply(page.get(page.size() - 1));
+        }
+    }
+}
@@ -0,0 +1,361 @@
+package com.hmdp.job;
+
+import cn.hutool.core.thread.ThreadFactoryBuilder;
+import com.hmdp.entity.Follow;
+import com.hmdp.service.IFollowService;
+import com.hmdp.utils.FeedClient;
+import com.hmdp.utils.StreamClient;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisStreamCommands;
+import org.springframework.data.redis.connection.stream.*;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * feed推送
+ * <p>
+ * 发布博客时{@link FeedClient#publish}只写入作者发件箱并向 stream.feed 发送一条推送任务 请求耗时与粉丝数无关
+ * 后台消费者按tb_follow主键游标分页读取粉丝(follow_user_id索引) 每批推送给活跃粉丝 一次管道写入
+ * 每批完成后把游标记录在 feed:fanout:progress 并刷新消息空闲时间 节点宕机后其他节点回收消息从游标处继续
+ * 回收的任务在单独的回收线程中推送 不占用共用的定时任务线程 投递次数达到上限的任务转入死信队列 stream.feed.dlq
+ * 推送过程中粉丝数达到阈值的作者标记为大V并停止推送 之后由粉丝阅读时合并发件箱
+ * 大V粉丝数降到阈值以下时 推送完成前把发件箱中最近的博客一并补推给活跃粉丝 再取消大V标记
+ * 监控指标: feed.fanout.lag(未投递) feed.fanout.pending(推送中) feed.fanout.pushed(推送条数)
+ * feed.fanout.latency(发布到推送完成) feed.fanout.dead-letter(死信)
+ *
+ * @author CHEN
+ * @date 2022/11/06
+ */
+@Slf4j
+@Component
+public class FeedFanoutWorker implements DisposableBean {
+    private static final String DLQ_SOURCE_ID = "sourceId";
+    private static final String DLQ_DELIVERY_COUNT = "deliveryCount";
+    private static final String DLQ_CONSUMER = "consumer";
+    private static final String DLQ_CURSOR = "cursor";
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private IFollowService followService;
+    @Resource
+    private FeedClient feedClient;
+    @Resource
+    private StreamClient streamClient;
+    @Resource
+    private MeterRegistry meterRegistry;
+    @Value("${hmdp.feed.bigv-threshold:5000}")
+    private long bigVThreshold;
+    @Value("${hmdp.feed.fanout.threads:2}")
+    private int threads;
+    @Value("${hmdp.feed.fanout.batch-size:500}")
+    private int batchSize;
+    @Value("${hmdp.feed.fanout.block:2000}")
+    private long blockMillis;
+    @Value("${hmdp.feed.fanout.min-idle:60000}")
+    private long minIdleMillis;
+    @Value("${hmdp.feed.fanout.max-deliveries:5}")
+    private long maxDeliveries;
+
+    private volatile boolean running = true;
+    private ExecutorService executor;
+    private ExecutorService reclaimExecutor;
+    /**
+     * 上一轮回收是否还在推送
+     */
+    private final AtomicBoolean reclaiming = new AtomicBoolean();
+    private final AtomicLong lag = new AtomicLong();
+    private final AtomicLong pending = new AtomicLong();
+    private Counter pushedCounter;
+    private Timer latencyTimer;
+    private Counter deadLetterCounter;
+    /**
+     * 回收消息时使用的消费者名称
+     */
+    private String reclaimerName;
+
+    @PostConstruct
+    private void init() {
+        streamClient.createGroup(FEED_STREAM_KEY, FEED_STREAM_GROUP);
+        Gauge.builder("feed.fanout.lag", lag, AtomicLong::get).register(meterRegistry);
+        Gauge.builder("feed.fanout.pending", pending, AtomicLong::get).register(meterRegistry);
+        pushedCounter = meterRegistry.counter("feed.fanout.pushed");
+        latencyTimer = meterRegistry.timer("feed.fanout.latency");
+        deadLetterCounter = meterRegistry.counter("feed.fanout.dead-letter");
+        String instance = StreamClient.instanceName();
+        reclaimerName = instance + "-reclaimer";
+        executor = Executors.newFixedThreadPool(threads
+                , ThreadFactoryBuilder.create().setNamePrefix("feed-fanout-").build());
+        for (int i = 0; i < threads; i++) {
+            String consumerName = instance + "-" + i;
+            executor.submit(() -> consume(consumerName));
+        }
+        reclaimExecutor = Executors.newSingleThreadExecutor(
+                ThreadFactoryBuilder.create().setNamePrefix("feed-fanout-reclaimer-").build());
+    }
+
+    private void consume(String consumerName) {
+        Consumer consumer = Consumer.from(FEED_STREAM_GROUP, consumerName);
+        //一个推送任务可能很大 每次只取一条 多个消费者并行处理不同的博客
+        StreamReadOptions readOptions = StreamReadOptions.empty().count(1).block(Duration.ofMillis(blockMillis));
+        while (running) {
+            try {
+                List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream().read(
+                        consumer
+                        , readOptions
+                        , StreamOffset.create(FEED_STREAM_KEY, ReadOffset.lastConsumed())
+                );
+                if (records == null || records.isEmpty()) {
+                    continue;
+                }
+                for (MapRecord<String, Object, Object> record : records) {
+                    handle(record, consumerName);
+                }
+            } catch (Exception e) {
+                if (!running) {
+                    break;
+                }
+                log.error("推送博客失败 consumer:{}", consumerName, e);
+                StreamClient.sleepQuietly(blockMillis);
+            }
+        }
+    }
+
+    /**
+     * 处理一个推送任务 从上次记录的游标继续
+     *
+     * @param record       推送任务
+     * @param consumerName 持有该消息的消费者
+     */
+    private void handle(MapRecord<String, Object, Object> record, String consumerName) {
+        Map<Object, Object> values = record.getValue();
+        Long authorId = Long.valueOf(values.get(FeedClient.FIELD_AUTHOR_ID).toString());
+        Long blogId = Long.valueOf(values.get(FeedClient.FIELD_BLOG_ID).toString());
+        long time = Long.parseLong(values.get(FeedClient.FIELD_TIME).toString());
+
+        boolean bigV = feedClient.isBigV(authorId);
+        if ((!bigV || countFollowers(authorId) < bigVThreshold)
+                && !fanout(record.getId(), consumerName, authorId, blogId, time, bigV)) {
+            //停机中断 留在pending list中由其他节点从游标处继续
+            return;
+        }
+        acknowledge(record.getId());
+        latencyTimer.record(Math.max(0, System.currentTimeMillis() - time), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 确认并删除 清除游标
+     */
+    private void acknowledge(RecordId recordId) {
+        byte[] key = FEED_STREAM_KEY.getBytes(StandardCharsets.UTF_8);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            connection.streamCommands().xAck(key, FEED_STREAM_GROUP, recordId);
+            connection.streamCommands().xDel(key, recordId);
+            connection.hashCommands().hDel(FEED_FANOUT_PROGRESS_KEY.getBytes(StandardCharsets.UTF_8)
+                    , recordId.getValue().getBytes(StandardCharsets.UTF_8));
+            return null;
+        });
+    }
+
+    /**
+     * 按游标分页推送 取消大V时同时补推发件箱中最近的博客(完成前仍标记为大V 粉丝阅读时继续合并发件箱)
+     *
+     * @param demote 作者是否从大V降级
+     * @return 是否完成(停机时中断返回false)
+     */
+    private boolean fanout(RecordId recordId, String consumerName, Long authorId, Long blogId, long time, boolean demote) {
+        Set<ZSetOperations.TypedTuple<String>> backlog = demote ? feedClient.recentPosts(authorId) : Collections.emptySet();
+        Object progress = stringRedisTemplate.opsForHash().get(FEED_FANOUT_PROGRESS_KEY, recordId.getValue());
+        long cursor = progress == null ? 0 : Long.parseLong(progress.toString());
+        long followers = 0;
+        while (true) {
+            if (!running) {
+                return false;
+            }
+            List<Follow> follows = followService.lambdaQuery()
+                    .select(Follow::getId, Follow::getUserId)
+                    .eq(Follow::getFollowUserId, authorId)
+                    .gt(Follow::getId, cursor)
+                    .orderByAsc(Follow::getId)
+                    .last("LIMIT " + batchSize)
+                    .list();
+            if (follows.isEmpty()) {
+                break;
+            }
+            List<Long> userIds = new ArrayList<>(follows.size());
+            follows.forEach(follow -> userIds.add(follow.getUserId()));
+            //只推送给活跃粉丝 其余粉丝阅读时从发件箱补齐
+            List<Long> active = feedClient.filterActive(userIds);
+            feedClient.push(active, blogId, time);
+            feedClient.push(active, backlog);
+            pushedCounter.increment(active.size());
+            cursor = follows.get(follows.size() - 1).getId();
+            followers += follows.size();
+            saveProgress(recordId, consumerName, cursor);
+            if (followers >= bigVThreshold) {
+                //粉丝数达到阈值 剩余粉丝阅读时从发件箱拉取
+                feedClient.markBigV(authorId, true);
+                log.info("作者粉丝数超过{} 标记为大V authorId:{}", bigVThreshold, authorId);
+                return true;
+            }
+            if (follows.size() < batchSize) {
+                break;
+            }
+        }
+        feedClient.markBigV(authorId, false);
+        if (demote) {
+            log.info("作者粉丝数低于{} 取消大V 补推最近博客{}篇 authorId:{}", bigVThreshold, backlog.size(), authorId);
+        }
+        return true;
+    }
+
+    /**
+     * 记录游标 并重新认领消息刷新空闲时间 避免推送时间较长的任务被其他节点回收
+     */
+    private void saveProgress(RecordId recordId, String consumerName, long cursor) {
+        byte[] key = FEED_STREAM_KEY.getBytes(StandardCharsets.UTF_8);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            connection.hashCommands().hSet(FEED_FANOUT_PROGRESS_KEY.getBytes(StandardCharsets.UTF_8)
+                    , recordId.getValue().getBytes(StandardCharsets.UTF_8)
+                    , String.valueOf(cursor).getBytes(StandardCharsets.UTF_8));
+            connection.streamCommands().xClaimJustId(key, FEED_STREAM_GROUP, consumerName
+                    , RedisStreamCommands.XClaimOptions.minIdle(Duration.ZERO).ids(recordId));
+            return null;
+        });
+    }
+
+    private long countFollowers(Long authorId) {
+        return followService.lambdaQuery().eq(Follow::getFollowUserId, authorId).count();
+    }
+
+    /**
+     * 回收空闲超时的推送任务(处理节点宕机) 交给回收线程从记录的游标继续推送 上一轮还没完成时跳过
+     */
+    @Scheduled(fixedDelayString = "${hmdp.feed.fanout.reclaim-interval:10000}")
+    public void reclaim() {
+        if (!running || !reclaiming.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            reclaimExecutor.execute(() -> {
+                try {
+                    reclaimPending();
+                } catch (Exception e) {
+                    log.error("回收推送任务失败", e);
+                } finally {
+                    reclaiming.set(false);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            //停机中
+            reclaiming.set(false);
+        }
+    }
+
+    private void reclaimPending() {
+        PendingMessages pendingMessages = stringRedisTemplate.opsForStream()
+                .pending(FEED_STREAM_KEY, FEED_STREAM_GROUP, Range.unbounded(), 100L);
+        if (pendingMessages == null || pendingMessages.isEmpty()) {
+            return;
+        }
+        List<String> claimIds = new ArrayList<>(pendingMessages.size());
+        for (PendingMessage pendingMessage : pendingMessages) {
+            if (pendingMessage.getElapsedTimeSinceLastDelivery().toMillis() < minIdleMillis) {
+                continue;
+            }
+            if (pendingMessage.getTotalDeliveryCount() >= maxDeliveries) {
+                deadLetter(pendingMessage);
+            } else {
+                claimIds.add(pendingMessage.getIdAsString());
+            }
+        }
+        if (claimIds.isEmpty()) {
+            return;
+        }
+        List<MapRecord<String, Object, Object>> records = streamClient.claim(
+                FEED_STREAM_KEY, FEED_STREAM_GROUP, reclaimerName, minIdleMillis, claimIds);
+        if (records.isEmpty()) {
+            return;
+        }
+        log.info("回收未完成的推送任务 数量:{}", records.size());
+        for (MapRecord<String, Object, Object> record : records) {
+            try {
+                handle(record, reclaimerName);
+            } catch (Exception e) {
+                log.error("推送博客失败 recordId:{}", record.getId(), e);
+            }
+        }
+    }
+
+    /**
+     * 将推送任务转入死信队列 附带原消息id、投递次数、最后的消费者和推送游标 然后确认并删除原消息
+     * 推送过程中每批都会重新认领刷新空闲时间 投递次数只在回收时增加 达到上限说明任务多次在同一位置失败
+     *
+     * @param pendingMessage 未确认的消息
+     */
+    private void deadLetter(PendingMessage pendingMessage) {
+        String id = pendingMessage.getIdAsString();
+        List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream()
+                .range(FEED_STREAM_KEY, Range.closed(id, id));
+        if (records != null && !records.isEmpty()) {
+            Map<Object, Object> values = new HashMap<>(records.get(0).getValue());
+            values.put(DLQ_SOURCE_ID, id);
+            values.put(DLQ_DELIVERY_COUNT, String.valueOf(pendingMessage.getTotalDeliveryCount()));
+            values.put(DLQ_CONSUMER, pendingMessage.getConsumerName());
+            Object cursor = stringRedisTemplate.opsForHash().get(FEED_FANOUT_PROGRESS_KEY, id);
+            if (cursor != null) {
+                values.put(DLQ_CURSOR, cursor.toString());
+            }
+            stringRedisTemplate.opsForStream().add(StreamRecords.newRecord().in(FEED_DLQ_KEY).ofMap(values));
+        }
+        acknowledge(pendingMessage.getId());
+        deadLetterCounter.increment();
+        log.error("推送任务投递{}次仍未完成 转入死信队列 recordId:{} consumer:{}"
+                , pendingMessage.getTotalDeliveryCount(), id, pendingMessage.getConsumerName());
+    }
+
+    /**
+     * 刷新积压指标 已完成的任务会被删除 所以stream长度减去未确认数量就是尚未开始的数量
+     */
+    @Scheduled(fixedDelayString = "${hmdp.feed.fanout.metrics-interval:5000}")
+    public void refreshMetrics() {
+        Long size = stringRedisTemplate.opsForStream().size(FEED_STREAM_KEY);
+        PendingMessagesSummary summary = stringRedisTemplate.opsForStream().pending(FEED_STREAM_KEY, FEED_STREAM_GROUP);
+        long pendingCount = summary == null ? 0 : summary.getTotalPendingMessages();
+        pending.set(pendingCount);
+        lag.set(Math.max(0, (size == null ? 0 : size) - pendingCount));
+    }
+
+    @Override
+    public void destroy() throws InterruptedException {
+        running = false;
+        executor.shutdown();
+        reclaimExecutor.shutdown();
+        executor.awaitTermination(blockMillis * 2, TimeUnit.MILLISECONDS);
+        reclaimExecutor.awaitTermination(blockMillis * 2, TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,189 @@
+package com.hmdp.job;
+
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.utils.FeedClient;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.DataType;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.hmdp.utils.RedisConstants.CACHE_LOCK_KEY;
+import static com.hmdp.utils.RedisConstants.FEED_KEY;
+
+/**
+ * 收件箱裁剪任务
+ * <p>
+ * 推送时已经裁剪收件箱 本任务定时扫描所有 feed:{userId} 裁剪此前遗留或补齐时超出的部分
+ * 通过lua脚本在裁剪前后各执行一次MEMORY USAGE 统计本任务节省的内存(推送时已裁剪 通常很少)
+ * 扫描时每memorySample个收件箱抽样一个执行MEMORY USAGE 按平均值估算所有收件箱的内存占用(指标feed.inbox.memory)
+ * 最近一次的报告通过 /actuator/feedmemory 查看
+ * 多个节点通过分布式锁保证同一时间只有一个节点扫描
+ *
+ * @author CHEN
+ * @date 2022/11/07
+ */
+@Slf4j
+@Component
+public class FeedTrimJob {
+    private static final String LOCK_KEY = CACHE_LOCK_KEY + "feed:trim";
+    private static final int SCAN_BATCH = 1000;
+    private static final DefaultRedisScript<List> TRIM_SCRIPT;
+    private static final DefaultRedisScript<Long> MEMORY_SCRIPT;
+
+    static {
+        TRIM_SCRIPT = new DefaultRedisScript<>();
+        TRIM_SCRIPT.setLocation(new ClassPathResource("feed_trim.lua"));
+        TRIM_SCRIPT.setResultType(List.class);
+        MEMORY_SCRIPT = new DefaultRedisScript<>();
+        MEMORY_SCRIPT.setLocation(new ClassPathResource("feed_memory.lua"));
+        MEMORY_SCRIPT.setResultType(Long.class);
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private RedissonClient redissonClient;
+    @Resource
+    private FeedClient feedClient;
+    @Resource
+    private MeterRegistry meterRegistry;
+    @Value("${hmdp.feed.memory-sample:100}")
+    private int memorySample;
+
+    private Counter removedCounter;
+    private Counter bytesSavedCounter;
+    /**
+     * 估算的收件箱总内存占用(字节)
+     */
+    private final AtomicLong inboxMemory = new AtomicLong();
+    /**
+     * 最近一次裁剪的报告
+     */
+    private volatile Map<String, Object> lastReport = Collections.emptyMap();
+
+    @PostConstruct
+    public void init() {
+        removedCounter = meterRegistry.counter("feed.trim.removed");
+        bytesSavedCounter = meterRegistry.counter("feed.trim.bytes-saved");
+        Gauge.builder("feed.inbox.memory", inboxMemory, AtomicLong::get).register(meterRegistry);
+    }
+
+    public Map<String, Object> getLastReport() {
+        return lastReport;
+    }
+
+    @Scheduled(initialDelayString = "${hmdp.feed.trim-initial-delay:60000}"
+            , fixedDelayString = "${hmdp.feed.trim-interval:3600000}")
+    public void trim() {
+        RLock lock = redissonClient.getLock(LOCK_KEY);
+        if (!lock.tryLock()) {
+            //其他节点正在处理
+            return;
+        }
+        try {
+            long begin = System.currentTimeMillis();
+            long[] totals = new long[4];
+            List<String> keys = new ArrayList<>(SCAN_BATCH);
+            List<String> samples = new ArrayList<>();
+            long inboxes = 0;
+            long sampleEvery = Math.max(1, memorySample);
+            ScanOptions options = ScanOptions.scanOptions().match(FEED_KEY + "*").type(DataType.ZSET).count(SCAN_BATCH).build();
+            try (Cursor<String> cursor = stringRedisTemplate.scan(options)) {
+                while (cursor.hasNext()) {
+                    String key = cursor.next();
+                    //只处理收件箱 跳过发件箱和活跃度等其他feed key
+                    if (StrUtil.isNumeric(key.substring(FEED_KEY.length()))) {
+                        if (inboxes++ % sampleEvery == 0) {
+                            samples.add(key);
+                        }
+                        keys.add(key);
+                    }
+                    if (keys.size() >= SCAN_BATCH) {
+                        trimBatch(keys, totals);
+                        keys.clear();
+                    }
+                }
+            }
+            trimBatch(keys, totals);
+            //裁剪之后再抽样 反映当前的内存占用
+            long sampledBytes = 0;
+            for (String sample : samples) {
+                Long bytes = stringRedisTemplate.execute(MEMORY_SCRIPT, Collections.singletonList(sample));
+                sampledBytes += bytes == null ? 0 : bytes;
+            }
+            long estimated = samples.isEmpty() ? 0 : sampledBytes / samples.size() * totals[0];
+            inboxMemory.set(estimated);
+            Map<String, Object> report = new LinkedHashMap<>(12);
+            report.put("time", LocalDateTime.now().toString());
+            report.put("inboxSize", feedClient.getInboxSize());
+            report.put("scannedInboxes", totals[0]);
+            report.put("trimmedInboxes", totals[1]);
+            report.put("removedEntries", totals[2]);
+            report.put("bytesSaved", totals[3]);
+            report.put("sampledInboxes", samples.size());
+            report.put("inboxMemoryBytes", estimated);
+            report.put("costMillis", System.currentTimeMillis() - begin);
+            lastReport = report;
+            log.info("裁剪收件箱 {}", report);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 一次管道查询长度 只对超出的收件箱执行裁剪脚本
+     *
+     * @param keys   收件箱key
+     * @param totals [扫描数, 裁剪数, 删除条数, 节省字节数]
+     */
+    private void trimBatch(List<String> keys, long[] totals) {
+        if (keys.isEmpty()) {
+            return;
+        }
+        int inboxSize = feedClient.getInboxSize();
+        List<Object> sizes = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (String key : keys) {
+                connection.zSetCommands().zCard(key.getBytes(StandardCharsets.UTF_8));
+            }
+            return null;
+        });
+        totals[0] += keys.size();
+        for (int i = 0; i < keys.size(); i++) {
+            Long size = (Long) sizes.get(i);
+            if (size == null || size <= inboxSize) {
+                continue;
+            }
+            List<?> result = stringRedisTemplate.execute(TRIM_SCRIPT
+                    , Collections.singletonList(keys.get(i)), String.valueOf(inboxSize));
+            if (result == null || result.size() < 2) {
+                continue;
+            }
+            long removed = ((Number) result.get(0)).longValue();
+            long saved = ((Number) result.get(1)).longValue();
+            totals[1]++;
+            totals[2] += removed;
+            totals[3] += saved;
+            removedCounter.increment(removed);
+            bytesSavedCounter.increment(saved);
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package com.hmdp.job;
+
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.utils.OrderStatusClient;
+import com.hmdp.utils.SeckillStockClient;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.ORDER_EXPIRE_KEY;
+
+/**
+ * 超时未支付订单取消任务
+ * <p>
+ * 订单落库后以超时时间为分数加入zset order:expire
+ * 定时通过lua脚本取出已超时的订单(取出时只推后分数作为租约 处理完成后才删除 节点宕机不会丢失)
+ * 整批在一个事务内取消仍未支付的订单并按券归还数据库库存 提交后通过管道归还redis库存和下单资格
+ * redis库存在数据库提交后归还 中间宕机只会少卖不会超卖 本地售罄标记由SeckillGate定时按剩余库存清除
+ * 多个节点可以同时执行 同一订单在租约内只会被一个节点取出
+ *
+ * @author CHEN
+ * @date 2022/11/05
+ */
+@Slf4j
+@Component
+public class OrderExpireJob {
+    private static final DefaultRedisScript<List> EXPIRE_SCRIPT;
+
+    static {
+        EXPIRE_SCRIPT = new DefaultRedisScript<>();
+        EXPIRE_SCRIPT.setLocation(new ClassPathResource("order_expire.lua"));
+        EXPIRE_SCRIPT.setResultType(List.class);
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+    @Resource
+    private SeckillStockClient seckillStockClient;
+    @Resource
+    private OrderStatusClient orderStatusClient;
+    @Resource
+    private MeterRegistry meterRegistry;
+    @Value("${hmdp.order.expire.timeout:15}")
+    private long timeoutMinutes;
+    @Value("${hmdp.order.expire.batch-size:500}")
+    private int batchSize;
+    @Value("${hmdp.order.expire.lease:60000}")
+    private long lease;
+
+    private Counter cancelledCounter;
+
+    @PostConstruct
+    public void init() {
+        cancelledCounter = meterRegistry.counter("order.expire.cancelled");
+    }
+
+    /**
+     * 登记订单的超时时间 使用ZADD NX 重复投递时重复登记不会推后超时时间
+     *
+     * @param acceptMillis 订单id -> 接受请求的时间(毫秒)
+     */
+    public void schedule(Map<Long, Long> acceptMillis) {
+        if (acceptMillis.isEmpty()) {
+            return;
+        }
+        byte[] key = ORDER_EXPIRE_KEY.getBytes(StandardCharsets.UTF_8);
+        long timeout = TimeUnit.MINUTES.toMillis(timeoutMinutes);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            acceptMillis.forEach((orderId, accept) -> connection.zSetCommands()
+                    .zAdd(key, accept + timeout, orderId.toString().getBytes(StandardCharsets.UTF_8)
+                            , RedisZSetCommands.ZAddArgs.ifNotExists()));
+            return null;
+        });
+    }
+
+    @Scheduled(fixedDelayString = "${hmdp.order.expire.interval:1000}")
+    public void expire() {
+        List<Long> orderIds;
+        do {
+            orderIds = pop();
+            if (!orderIds.isEmpty()) {
+                cancel(orderIds);
+            }
+            //取满一批说明可能还有积压 继续处理
+        } while (orderIds.size() >= batchSize);
+    }
+
+    private List<Long> pop() {
+        List<?> ids = stringRedisTemplate.execute(
+                EXPIRE_SCRIPT
+                , Collections.singletonList(ORDER_EXPIRE_KEY)
+                , String.valueOf(System.currentTimeMillis())
+                , String.valueOf(batchSize)
+                , String.valueOf(lease));
+        if (ids == null || ids.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<Long> orderIds = new ArrayList<>(ids.size());
+        ids.forEach(id -> orderIds.add(Long.valueOf(id.toString())));
+        return orderIds;
+    }
+
+    private void cancel(List<Long> orderIds) {
+        List<VoucherOrder> cancelled;
+        try {
+            cancelled = voucherOrderService.cancelVoucherOrders(orderIds);
+        } catch (Exception e) {
+            //租约到期后重新取出
+            log.error("取消超时订单失败 数量:{}", orderIds.size(), e);
+            return;
+        }
+        seckillStockClient.returnStock(cancelled);
+        List<Long> cancelledIds = new ArrayList<>(cancelled.size());
+        cancelled.forEach(order -> cancelledIds.add(order.getId()));
+        orderStatusClient.markCancelled(cancelledIds);
+        //已支付的订单直接移除
+        stringRedisTemplate.opsForZSet().remove(ORDER_EXPIRE_KEY, orderIds.stream().map(String::valueOf).toArray());
+        cancelledCounter.increment(cancelled.size());
+        if (!cancelled.isEmpty()) {
+            log.info("取消超时未支付订单 数量:{}", cancelled.size());
+        }
+    }
+}
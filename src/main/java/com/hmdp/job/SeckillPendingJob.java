@@ -0,0 +1,65 @@
+package com.hmdp.job;
+
+import com.hmdp.utils.SeckillStockClient;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+
+import static com.hmdp.utils.RedisConstants.CACHE_LOCK_KEY;
+
+/**
+ * 分片秒杀对账任务
+ * <p>
+ * 分片模式下扣减库存和发送订单消息不在一个脚本内 定时处理扣减后发送前宕机遗留的待发送记录
+ * 多个节点通过分布式锁保证同一时间只有一个节点对账
+ *
+ * @author CHEN
+ * @date 2022/11/10
+ */
+@Slf4j
+@Component
+public class SeckillPendingJob {
+    private static final String LOCK_KEY = CACHE_LOCK_KEY + "seckill:pending";
+
+    @Resource
+    private SeckillStockClient seckillStockClient;
+    @Resource
+    private RedissonClient redissonClient;
+    @Resource
+    private MeterRegistry meterRegistry;
+    @Value("${hmdp.seckill.pending.timeout:60000}")
+    private long timeoutMillis;
+
+    private Counter reconciledCounter;
+
+    @PostConstruct
+    public void init() {
+        reconciledCounter = meterRegistry.counter("seckill.pending.reconciled");
+    }
+
+    @Scheduled(fixedDelayString = "${hmdp.seckill.pending.interval:10000}")
+    public void reconcile() {
+        RLock lock = redissonClient.getLock(LOCK_KEY);
+        if (!lock.tryLock()) {
+            //其他节点正在处理
+            return;
+        }
+        try {
+            int reconciled = seckillStockClient.reconcilePending(timeoutMillis);
+            if (reconciled > 0) {
+                reconciledCounter.increment(reconciled);
+                log.info("对账分片秒杀遗留记录 数量:{}", reconciled);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+}
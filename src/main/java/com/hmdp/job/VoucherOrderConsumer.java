@@ -0,0 +1,371 @@
+package com.hmdp.job;
+
+import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.thread.ThreadFactoryBuilder;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.utils.OrderStatusClient;
+import com.hmdp.utils.SeckillStockClient;
+import com.hmdp.utils.StreamClient;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.connection.stream.*;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 秒杀订单消费者
+ * <p>
+ * 每个节点启动N个消费者线程 消费者名称为 主机名-进程号-序号 保证各实例之间不重复
+ * 每次读取一批消息 一次事务批量写入数据库 处理完成后一次XACK确认 并XDEL删除已处理的消息 使stream长度=待投递+未确认
+ * 处理失败的消息留在pending list中 由定时回收任务跨消费者领取重试 超过投递次数上限的转入死信队列
+ * 监控指标: order.stream.lag(未投递) order.stream.pending(未确认) order.stream.consumed(已处理)
+ * order.stream.reclaimed(回收) order.stream.dead-letter(死信)
+ *
+ * @author CHEN
+ * @date 2022/10/30
+ */
+@Slf4j
+@Component
+public class VoucherOrderConsumer implements DisposableBean {
+    private static final String DLQ_SOURCE_ID = "sourceId";
+    private static final String DLQ_DELIVERY_COUNT = "deliveryCount";
+    private static final String DLQ_CONSUMER = "consumer";
+    private static final String DLQ_REPLAY_RESULT = "replayResult";
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+    @Resource
+    private MeterRegistry meterRegistry;
+    @Resource
+    private OrderStatusClient orderStatusClient;
+    @Resource
+    private OrderExpireJob orderExpireJob;
+    @Resource
+    private SeckillStockClient seckillStockClient;
+    @Resource
+    private StreamClient streamClient;
+    @Value("${hmdp.order.consumer.threads:4}")
+    private int threads;
+    @Value("${hmdp.order.consumer.batch-size:100}")
+    private int batchSize;
+    @Value("${hmdp.order.consumer.block:2000}")
+    private long blockMillis;
+    @Value("${hmdp.order.reclaim.min-idle:30000}")
+    private long minIdleMillis;
+    @Value("${hmdp.order.reclaim.max-deliveries:5}")
+    private long maxDeliveries;
+    @Value("${hmdp.order.reclaim.batch-size:100}")
+    private long reclaimBatchSize;
+
+    private volatile boolean running = true;
+    private ExecutorService executor;
+    /**
+     * 回收线程 回收的消息可能很多 不占用共享的定时任务线程
+     */
+    private ExecutorService reclaimExecutor;
+    private final AtomicBoolean reclaiming = new AtomicBoolean();
+    private final AtomicLong lag = new AtomicLong();
+    private final AtomicLong pending = new AtomicLong();
+    private Counter consumedCounter;
+    private Counter failedCounter;
+    private Timer batchTimer;
+    private Counter reclaimedCounter;
+    private Counter deadLetterCounter;
+    /**
+     * 回收消息时使用的消费者名称
+     */
+    private String reclaimerName;
+
+    @PostConstruct
+    private void init() {
+        streamClient.createGroup(ORDER_STREAM_KEY, ORDER_STREAM_GROUP);
+        Gauge.builder("order.stream.lag", lag, AtomicLong::get).register(meterRegistry);
+        Gauge.builder("order.stream.pending", pending, AtomicLong::get).register(meterRegistry);
+        consumedCounter = meterRegistry.counter("order.stream.consumed");
+        failedCounter = meterRegistry.counter("order.stream.failed");
+        batchTimer = meterRegistry.timer("order.stream.batch.latency");
+        reclaimedCounter = meterRegistry.counter("order.stream.reclaimed");
+        deadLetterCounter = meterRegistry.counter("order.stream.dead-letter");
+        String instance = StreamClient.instanceName();
+        reclaimerName = instance + "-reclaimer";
+        executor = Executors.newFixedThreadPool(threads
+                , ThreadFactoryBuilder.create().setNamePrefix("order-consumer-").build());
+        reclaimExecutor = Executors.newSingleThreadExecutor(
+                ThreadFactoryBuilder.create().setNamePrefix("order-reclaimer-").build());
+        for (int i = 0; i < threads; i++) {
+            String consumerName = instance + "-" + i;
+            executor.submit(() -> consume(consumerName));
+        }
+        log.info("订单消费者已启动 instance:{} 线程数:{} 批大小:{}", instance, threads, batchSize);
+    }
+
+    private void consume(String consumerName) {
+        Consumer consumer = Consumer.from(ORDER_STREAM_GROUP, consumerName);
+        StreamReadOptions readOptions = StreamReadOptions.empty().count(batchSize).block(Duration.ofMillis(blockMillis));
+        while (running) {
+            try {
+                //从消息队列中获取一批订单信息
+                List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream().read(
+                        consumer
+                        , readOptions
+                        , StreamOffset.create(ORDER_STREAM_KEY, ReadOffset.lastConsumed())
+                );
+                if (records == null || records.isEmpty()) {
+                    continue;
+                }
+                handle(records);
+            } catch (Exception e) {
+                if (!running) {
+                    break;
+                }
+                log.error("读取订单消息失败 consumer:{}", consumerName, e);
+                StreamClient.sleepQuietly(blockMillis);
+            }
+        }
+    }
+
+    /**
+     * 处理一批消息 成功的一次确认
+     *
+     * @param records 消息
+     * @return 成功的数量
+     */
+    private int handle(List<MapRecord<String, Object, Object>> records) {
+        long begin = System.nanoTime();
+        List<VoucherOrder> voucherOrders = new ArrayList<>(records.size());
+        for (MapRecord<String, Object, Object> record : records) {
+            voucherOrders.add(BeanUtil.fillBeanWithMap(record.getValue(), new VoucherOrder(), true));
+        }
+        //一次事务写入整批订单
+        Set<Long> created = voucherOrderService.handleVoucherOrders(voucherOrders);
+        List<RecordId> done = new ArrayList<>(records.size());
+        //订单id -> 接受请求的时间(消息id中的毫秒时间戳)
+        Map<Long, Long> acceptMillis = new HashMap<>(records.size() * 2);
+        for (int i = 0; i < records.size(); i++) {
+            Long orderId = voucherOrders.get(i).getId();
+            if (created.contains(orderId)) {
+                RecordId recordId = records.get(i).getId();
+                done.add(recordId);
+                acceptMillis.put(orderId, recordId.getTimestamp());
+            } else {
+                failedCounter.increment();
+            }
+        }
+        //订单已经提交 确认前登记超时时间(确认后宕机会漏掉登记) 重新投递时的重复登记由ZADD NX忽略
+        orderExpireJob.schedule(acceptMillis);
+        acknowledge(done);
+        orderStatusClient.markCreated(acceptMillis);
+        consumedCounter.increment(done.size());
+        batchTimer.record(System.nanoTime() - begin, TimeUnit.NANOSECONDS);
+        return done.size();
+    }
+
+    /**
+     * 一次XACK确认 一次XDEL删除
+     *
+     * @param ids 消息id
+     */
+    private void acknowledge(List<RecordId> ids) {
+        if (ids.isEmpty()) {
+            return;
+        }
+        byte[] key = ORDER_STREAM_KEY.getBytes(StandardCharsets.UTF_8);
+        RecordId[] recordIds = ids.toArray(new RecordId[0]);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            connection.streamCommands().xAck(key, ORDER_STREAM_GROUP, recordIds);
+            connection.streamCommands().xDel(key, recordIds);
+            return null;
+        });
+    }
+
+    /**
+     * 回收所有消费者中空闲超时的未确认消息(包括已经下线的节点)
+     * 投递次数达到上限的消息转入死信队列 其余通过XCLAIM转给本节点的回收消费者重新处理
+     * XCLAIM带有最小空闲时间 多个节点同时回收时同一条消息只会被一个节点领取
+     * 交给回收线程处理 上一轮还没完成时跳过
+     */
+    @Scheduled(fixedDelayString = "${hmdp.order.reclaim.interval:5000}")
+    public void reclaim() {
+        if (!running || !reclaiming.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            reclaimExecutor.execute(() -> {
+                try {
+                    reclaimPending();
+                } catch (Exception e) {
+                    log.error("回收订单消息失败", e);
+                } finally {
+                    reclaiming.set(false);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            //停机中
+            reclaiming.set(false);
+        }
+    }
+
+    private void reclaimPending() {
+        PendingMessages pendingMessages = stringRedisTemplate.opsForStream()
+                .pending(ORDER_STREAM_KEY, ORDER_STREAM_GROUP, Range.unbounded(), reclaimBatchSize);
+        if (pendingMessages == null || pendingMessages.isEmpty()) {
+            return;
+        }
+        List<String> claimIds = new ArrayList<>(pendingMessages.size());
+        for (PendingMessage pendingMessage : pendingMessages) {
+            if (pendingMessage.getElapsedTimeSinceLastDelivery().toMillis() < minIdleMillis) {
+                continue;
+            }
+            if (pendingMessage.getTotalDeliveryCount() >= maxDeliveries) {
+                deadLetter(pendingMessage);
+            } else {
+                claimIds.add(pendingMessage.getIdAsString());
+            }
+        }
+        if (claimIds.isEmpty()) {
+            return;
+        }
+        List<MapRecord<String, Object, Object>> records = streamClient.claim(
+                ORDER_STREAM_KEY, ORDER_STREAM_GROUP, reclaimerName, minIdleMillis, claimIds);
+        if (records.isEmpty()) {
+            return;
+        }
+        reclaimedCounter.increment(records.size());
+        log.info("回收未确认的订单消息 数量:{}", records.size());
+        handle(records);
+    }
+
+    /**
+     * 将消息转入死信队列 附带原消息id、投递次数和最后的消费者 然后确认并删除原消息
+     * 订单不会再创建 标记为失败并归还redis库存和下单资格
+     * 订单已经写入数据库(提交后确认前宕机)的直接确认 按创建成功处理
+     *
+     * @param pendingMessage 未确认的消息
+     */
+    private void deadLetter(PendingMessage pendingMessage) {
+        String id = pendingMessage.getIdAsString();
+        List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream()
+                .range(ORDER_STREAM_KEY, Range.closed(id, id));
+        if (records != null && !records.isEmpty()) {
+            VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(records.get(0).getValue(), new VoucherOrder(), true);
+            if (voucherOrder.getId() != null && voucherOrderService.getById(voucherOrder.getId()) != null) {
+                Map<Long, Long> acceptMillis = Collections.singletonMap(voucherOrder.getId(), pendingMessage.getId().getTimestamp());
+                orderExpireJob.schedule(acceptMillis);
+                acknowledge(Collections.singletonList(pendingMessage.getId()));
+                orderStatusClient.markCreated(acceptMillis);
+                log.warn("订单已经创建 直接确认消息 recordId:{} orderId:{}", id, voucherOrder.getId());
+                return;
+            }
+            Map<Object, Object> values = new HashMap<>(records.get(0).getValue());
+            values.put(DLQ_SOURCE_ID, id);
+            values.put(DLQ_DELIVERY_COUNT, String.valueOf(pendingMessage.getTotalDeliveryCount()));
+            values.put(DLQ_CONSUMER, pendingMessage.getConsumerName());
+            stringRedisTemplate.opsForStream().add(StreamRecords.newRecord().in(ORDER_DLQ_KEY).ofMap(values));
+            if (voucherOrder.getId() != null) {
+                orderStatusClient.markFailed(voucherOrder.getId());
+            }
+            if (voucherOrder.getVoucherId() != null && voucherOrder.getUserId() != null) {
+                seckillStockClient.returnStock(Collections.singletonList(voucherOrder));
+            }
+        }
+        acknowledge(Collections.singletonList(pendingMessage.getId()));
+        deadLetterCounter.increment();
+        log.error("订单消息投递{}次仍未成功 转入死信队列 recordId:{} consumer:{}"
+                , pendingMessage.getTotalDeliveryCount(), id, pendingMessage.getConsumerName());
+    }
+
+    /**
+     * 将死信队列中最早的一批消息重新投递到订单队列
+     * 转入死信时已经归还库存和下单资格 重新投递时通过秒杀脚本重新扣减
+     * 投递失败(库存不足、秒杀已结束、异常等)的消息附带失败原因移到死信队列末尾 不会丢弃 也不会阻塞后面的消息
+     *
+     * @param count 数量
+     * @return 重新投递的数量
+     */
+    public int replayDeadLetters(int count) {
+        List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream()
+                .range(ORDER_DLQ_KEY, Range.unbounded(), RedisZSetCommands.Limit.limit().count(count));
+        if (records == null || records.isEmpty()) {
+            return 0;
+        }
+        int replayed = 0;
+        for (MapRecord<String, Object, Object> record : records) {
+            VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(record.getValue(), new VoucherOrder(), true);
+            String result;
+            if (voucherOrder.getId() == null || voucherOrder.getVoucherId() == null || voucherOrder.getUserId() == null) {
+                result = "invalid";
+            } else {
+                try {
+                    int r = seckillStockClient.seckill(voucherOrder.getVoucherId(), voucherOrder.getUserId(), voucherOrder.getId());
+                    result = String.valueOf(r);
+                    if (r == SeckillStockClient.SUCCESS) {
+                        replayed++;
+                        stringRedisTemplate.opsForStream().delete(ORDER_DLQ_KEY, record.getId());
+                        continue;
+                    }
+                } catch (Exception e) {
+                    log.error("死信订单重新投递失败 orderId:{}", voucherOrder.getId(), e);
+                    result = e.getClass().getSimpleName();
+                }
+            }
+            log.warn("死信订单无法重新投递 orderId:{} 结果:{}", voucherOrder.getId(), result);
+            //先追加到末尾再删除原消息 中途宕机最多留下重复的死信
+            Map<Object, Object> values = new HashMap<>(record.getValue());
+            values.put(DLQ_REPLAY_RESULT, result);
+            stringRedisTemplate.opsForStream().add(StreamRecords.newRecord().in(ORDER_DLQ_KEY).ofMap(values));
+            stringRedisTemplate.opsForStream().delete(ORDER_DLQ_KEY, record.getId());
+        }
+        log.info("死信队列重新投递 数量:{}/{}", replayed, records.size());
+        return replayed;
+    }
+
+    /**
+     * 刷新积压指标 已处理的消息会被删除 所以stream长度减去未确认数量就是尚未投递的数量
+     */
+    @Scheduled(fixedDelayString = "${hmdp.order.consumer.metrics-interval:5000}")
+    public void refreshMetrics() {
+        Long size = stringRedisTemplate.opsForStream().size(ORDER_STREAM_KEY);
+        PendingMessagesSummary summary = stringRedisTemplate.opsForStream().pending(ORDER_STREAM_KEY, ORDER_STREAM_GROUP);
+        long pendingCount = summary == null ? 0 : summary.getTotalPendingMessages();
+        pending.set(pendingCount);
+        lag.set(Math.max(0, (size == null ? 0 : size) - pendingCount));
+    }
+
+    @Override
+    public void destroy() throws InterruptedException {
+        running = false;
+        executor.shutdown();
+        reclaimExecutor.shutdown();
+        reclaimExecutor.awaitTermination(blockMillis + 10000, TimeUnit.MILLISECONDS);
+        //等待正在处理的批次完成 未确认的消息由其他节点或重启后处理
+        if (!executor.awaitTermination(blockMillis + 10000, TimeUnit.MILLISECONDS)) {
+            executor.shutdownNow();
+        }
+    }
+}
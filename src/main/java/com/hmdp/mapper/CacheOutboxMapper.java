@@ -0,0 +1,16 @@
+package com.hmdp.mapper;
+
+import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import com.hmdp.entity.CacheOutbox;
+
+/**
+ * <p>
+ *  Mapper 接口
+ * </p>
+ *
+ * @author CHEN
+ * @since 2022-10-28
+ */
+public interface CacheOutboxMapper extends BaseMapper<CacheOutbox> {
+
+}
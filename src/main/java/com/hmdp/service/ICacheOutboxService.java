@@ -0,0 +1,16 @@
+package com.hmdp.service;
+
+import com.baomidou.mybatisplus.extension.service.IService;
+import com.hmdp.entity.CacheOutbox;
+
+/**
+ * <p>
+ * 缓存失效事件表 服务类
+ * </p>
+ *
+ * @author CHEN
+ * @since 2022-10-28
+ */
+public interface ICacheOutboxService extends IService<CacheOutbox> {
+
+}
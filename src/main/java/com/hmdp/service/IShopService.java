@@ -22,6 +22,14 @@ public interface IShopService extends IService<Shop> {
      */
     Result queryById(Long id);
 
+    /**
+     * 新增店铺信息
+     *
+     * @param shop 商店
+     * @return {@link Result}
+     */
+    Result saveShop(Shop shop);
+
     /**
      * 更新店铺信息
      *
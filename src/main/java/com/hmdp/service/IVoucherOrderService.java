@@ -6,6 +6,9 @@ import com.hmdp.entity.VoucherOrder;
 import org.jetbrains.annotations.NotNull;
 import org.springframework.transaction.annotation.Transactional;
 
+import java.util.List;
+import java.util.Set;
+
 /**
  * ivoucher订单服务
  * <p>
@@ -34,6 +37,38 @@ public interface IVoucherOrderService extends IService<VoucherOrder> {
      */
     Result getResult(Long voucherId);
 
+    /**
+     * 处理消息队列中的订单 加锁后创建订单
+     *
+     * @param voucherOrder 券订单
+     */
+    void handleVoucherOrder(VoucherOrder voucherOrder);
+
+    /**
+     * 批量处理消息队列中的订单 整批失败时逐条处理
+     *
+     * @param voucherOrders 券订单
+     * @return 已落库的订单id(包括此前已经落库的重复投递)
+     */
+    Set<Long> handleVoucherOrders(List<VoucherOrder> voucherOrders);
+
+    /**
+     * 批量创建优惠券订单 每张券一次扣减库存 一次多行插入
+     *
+     * @param voucherOrders 券订单
+     */
+    @Transactional(rollbackFor = Exception.class)
+    void createVoucherOrders(List<VoucherOrder> voucherOrders);
+
+    /**
+     * 批量取消超时未支付的订单 每张券一次归还数据库库存
+     *
+     * @param orderIds 订单id
+     * @return 本次取消的订单(已支付或已取消的订单被忽略)
+     */
+    @Transactional(rollbackFor = Exception.class)
+    List<VoucherOrder> cancelVoucherOrders(List<Long> orderIds);
+
     /**
      * 创建优惠券订单
      *
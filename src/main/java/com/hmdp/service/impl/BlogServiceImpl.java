@@ -3,27 +3,36 @@ package com.hmdp.service.impl;
 import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.util.BooleanUtil;
 import cn.hutool.core.util.StrUtil;
-import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.dto.Result;
 import com.hmdp.dto.ScrollResult;
 import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.Blog;
-import com.hmdp.entity.Follow;
 import com.hmdp.entity.User;
 import com.hmdp.mapper.BlogMapper;
 import com.hmdp.service.IBlogService;
-import com.hmdp.service.IFollowService;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.FeedClient;
+import com.hmdp.utils.HotBlogClient;
 import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.SystemConstants;
 import com.hmdp.utils.UserHolder;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.DefaultTypedTuple;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.ZSetOperations;
 import org.springframework.stereotype.Service;
 
 import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
 /**
@@ -39,28 +48,37 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     @Resource
     private IUserService userService;
     @Resource
-    private IFollowService followService;
-    @Resource
     private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private CacheClient cacheClient;
+    @Resource
+    private FeedClient feedClient;
+    @Resource
+    private HotBlogClient hotBlogClient;
+    @Value("${hmdp.feed.page-size:2}")
+    private int pageSize;
 
     @Override
     public Result queryHotBlog(Integer current) {
-        // 根据用户查询
-        Page<Blog> page = query()
-                .orderByDesc("liked")
-                .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
-        // 获取当前页数据
-        List<Blog> records = page.getRecords();
-        // 查询用户
-        records.forEach(blog -> {
-            queryBlogUser(blog);
-            isBlogLiked(blog);
-        });
+        // 从热度排行中查询当前页的博客id
+        List<Long> ids = hotBlogClient.page(current, SystemConstants.MAX_PAGE_SIZE);
+        if (ids.isEmpty()) {
+            return Result.ok(Collections.emptyList());
+        }
+        // 批量读取博客缓存 复制后再填充
+        List<Blog> records = new ArrayList<>(ids.size());
+        queryBlogBatch(ids).values().forEach(blog -> records.add(BeanUtil.copyProperties(blog, Blog.class)));
+        // 批量查询用户和点赞状态
+        hydrate(records);
         return Result.ok(records);
     }
 
     @Override
     public Result queryBlogById(Long id) {
+        //布隆过滤器判断
+        if (!cacheClient.mightContain(RedisConstants.CACHE_BLOG_KEY, id)) {
+            return Result.fail("博客不存在");
+        }
         //查询blog
         Blog blog = getById(id);
         if (blog == null) {
@@ -85,6 +103,8 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
             //保存数据到redis
             if (isSuccess){
                 stringRedisTemplate.opsForZSet().add(key,userId.toString(),System.currentTimeMillis());
+                hotBlogClient.onLike(id, 1);
+                cacheClient.delete(RedisConstants.CACHE_BLOG_KEY + id);
             }
         } else {
             //如果已经点赞 取消点赞
@@ -92,6 +112,8 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
             //数据库-1
             if (isSuccess){
                 stringRedisTemplate.opsForZSet().remove(key,userId.toString());
+                hotBlogClient.onLike(id, -1);
+                cacheClient.delete(RedisConstants.CACHE_BLOG_KEY + id);
             }
             //redis删除数据
         }
@@ -126,22 +148,20 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         // 获取登录用户
         UserDTO user = UserHolder.getUser();
         blog.setUserId(user.getId());
+        //发布时间 精确到秒与数据库一致 同时作为feed的分数
+        blog.setCreateTime(LocalDateTime.now().withNano(0));
         // 保存探店博文
         boolean isSuccess = save(blog);
         if (!isSuccess){
             return Result.fail("新增笔记失败");
         }
-        //查询笔记作者的所有粉丝
-        List<Follow> follows = followService.lambdaQuery()
-                .eq(Follow::getFollowUserId, user.getId())
-                .list();
-        //推送笔记给所有粉丝
-        for (Follow follow : follows) {
-            Long userId = follow.getUserId();
-            //推送
-            String key="feed:"+userId;
-            stringRedisTemplate.opsForZSet().add(key,blog.getId().toString(),System.currentTimeMillis());
-        }
+        long time = toMillis(blog.getCreateTime());
+        //写入布隆过滤器
+        cacheClient.addToBloomFilter(RedisConstants.CACHE_BLOG_KEY, blog.getId());
+        //加入热门排行
+        hotBlogClient.onPublish(blog.getId(), time);
+        //写入作者发件箱 后台推送给活跃粉丝(大V不推送 由粉丝阅读时拉取)
+        feedClient.publish(user.getId(), blog.getId(), time);
         // 返回id
         return Result.ok(blog.getId());
     }
@@ -149,12 +169,26 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     public Result queryBlogOfFollow(Long max, Integer offset) {
         //获取当前用户
         UserDTO user = UserHolder.getUser();
-        //查询收件箱
-        String key="feed:"+user.getId();
-        Set<ZSetOperations.TypedTuple<String>> typedTuples = stringRedisTemplate.opsForZSet()
-                .reverseRangeByScoreWithScores(key, 0, max, offset, 2);
+        //不活跃的用户先补齐收件箱
+        feedClient.touch(user.getId());
+        List<ZSetOperations.TypedTuple<String>> typedTuples;
+        //收件箱只保留最近的博客 裁剪边界及之前的博客(包括与边界同一时间被裁剪的)从数据库拉取
+        //两部分的时间范围不重叠 同一时间的博客只来自一处 offset的语义不变
+        Double boundary = feedClient.trimBoundary(user.getId());
+        if (boundary == null) {
+            typedTuples = feedClient.read(user.getId(), max, -1, offset, pageSize);
+        } else if (max > boundary) {
+            //查询收件箱 合并关注的大V发件箱
+            typedTuples = new ArrayList<>(feedClient.read(user.getId(), max, boundary.longValue(), offset, pageSize));
+            if (typedTuples.size() < pageSize) {
+                //收件箱已经读完 从边界开始拉取数据库
+                typedTuples.addAll(queryOlderBlogOfFollow(user.getId(), boundary.longValue(), 0, pageSize - typedTuples.size()));
+            }
+        } else {
+            typedTuples = queryOlderBlogOfFollow(user.getId(), max, offset, pageSize);
+        }
         //非空判断
-        if (typedTuples==null||typedTuples.isEmpty()){
+        if (typedTuples.isEmpty()){
             return Result.ok();
         }
         //解析数据 blogId minTime offset
@@ -173,13 +207,14 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
                 os=1;
             }
         }
-        //根据 查询blog
-        List<Blog> blogs=new ArrayList<>(ids.size());
-        for (Long id : ids) {
-            Blog blog = getById(id);
-            blogs.add(blog);
+        if (minTime == max) {
+            //整页时间都等于max 下一页还要跳过上一页已经跳过的数量
+            os += offset;
         }
-        blogs.forEach(this::isBlogLiked);
+        //根据id批量查询blog 缓存中的对象是共享的 复制后再填充作者和点赞状态
+        List<Blog> blogs = new ArrayList<>(ids.size());
+        queryBlogBatch(ids).values().forEach(blog -> blogs.add(BeanUtil.copyProperties(blog, Blog.class)));
+        hydrate(blogs);
         //封装 返回
         ScrollResult scrollResult = new ScrollResult();
         scrollResult.setList(blogs);
@@ -188,6 +223,120 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         return Result.ok(scrollResult);
     }
 
+    /**
+     * 从数据库拉取关注作者在收件箱裁剪边界及之前发布的博客 按(create_time, id)倒序 分数为create_time
+     * 语义同 ZREVRANGEBYSCORE key max 0 LIMIT offset count
+     *
+     * @param userId 用户id
+     * @param max    最大时间(毫秒)
+     * @param offset 跳过的条数(上一页中时间等于max的数量)
+     * @param count  需要的数量
+     * @return 博客id和发布时间
+     */
+    private List<ZSetOperations.TypedTuple<String>> queryOlderBlogOfFollow(Long userId, long max, int offset, int count) {
+        List<Long> authorIds = feedClient.followings(userId);
+        if (authorIds.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<Blog> blogs = lambdaQuery()
+                .select(Blog::getId, Blog::getCreateTime)
+                .in(Blog::getUserId, authorIds)
+                .le(Blog::getCreateTime, toLocalDateTime(max))
+                .orderByDesc(Blog::getCreateTime)
+                .orderByDesc(Blog::getId)
+                .last("LIMIT " + offset + "," + count)
+                .list();
+        List<ZSetOperations.TypedTuple<String>> tuples = new ArrayList<>(blogs.size());
+        for (Blog blog : blogs) {
+            tuples.add(new DefaultTypedTuple<>(blog.getId().toString(), (double) toMillis(blog.getCreateTime())));
+        }
+        return tuples;
+    }
+
+    private static LocalDateTime toLocalDateTime(long millis) {
+        return LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneId.systemDefault());
+    }
+
+    private static long toMillis(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    /**
+     * 批量查询博客 优先读取缓存
+     *
+     * @param ids id
+     * @return 按ids顺序排列的博客
+     */
+    private Map<Long, Blog> queryBlogBatch(List<Long> ids) {
+        return cacheClient.queryBatch(RedisConstants.CACHE_BLOG_KEY
+                , ids
+                , Blog.class
+                , misses -> listByIds(misses).stream()
+                        .collect(Collectors.toMap(Blog::getId, Function.identity()))
+                , RedisConstants.CACHE_BLOG_TTL
+                , TimeUnit.MINUTES);
+    }
+
+    /**
+     * 填充作者信息和点赞状态 一页博客固定一次用户批量查询和一次点赞管道查询 与页大小无关
+     *
+     * @param blogs 博客
+     */
+    private void hydrate(List<Blog> blogs) {
+        queryBlogUser(blogs);
+        isBlogLiked(blogs);
+    }
+
+    /**
+     * 批量填充博客作者信息 优先读取缓存
+     *
+     * @param blogs 博客
+     */
+    private void queryBlogUser(List<Blog> blogs) {
+        if (blogs.isEmpty()) {
+            return;
+        }
+        List<Long> userIds = blogs.stream().map(Blog::getUserId).collect(Collectors.toList());
+        Map<Long, UserDTO> users = cacheClient.queryBatch(RedisConstants.CACHE_USER_KEY
+                , userIds
+                , UserDTO.class
+                , misses -> userService.listByIds(misses).stream()
+                        .collect(Collectors.toMap(User::getId, user -> BeanUtil.copyProperties(user, UserDTO.class)))
+                , RedisConstants.CACHE_USER_TTL
+                , TimeUnit.MINUTES);
+        for (Blog blog : blogs) {
+            UserDTO user = users.get(blog.getUserId());
+            if (user != null) {
+                blog.setName(user.getNickName());
+                blog.setIcon(user.getIcon());
+            }
+        }
+    }
+
+    /**
+     * 批量判断当前用户是否点赞 一次管道查询
+     *
+     * @param blogs 博客
+     */
+    private void isBlogLiked(List<Blog> blogs) {
+        //获取当前登陆用户
+        UserDTO user = UserHolder.getUser();
+        if (user == null || blogs.isEmpty()) {
+            return;
+        }
+        byte[] member = user.getId().toString().getBytes(StandardCharsets.UTF_8);
+        List<Object> scores = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Blog blog : blogs) {
+                byte[] key = (RedisConstants.BLOG_LIKED_KEY + blog.getId()).getBytes(StandardCharsets.UTF_8);
+                connection.zSetCommands().zScore(key, member);
+            }
+            return null;
+        });
+        for (int i = 0; i < blogs.size(); i++) {
+            blogs.get(i).setIsLike(scores.get(i) != null);
+        }
+    }
+
     private void queryBlogUser(Blog blog) {
         Long userId = blog.getUserId();
         User user = userService.getById(userId);
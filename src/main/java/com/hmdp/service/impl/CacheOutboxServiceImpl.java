@@ -0,0 +1,20 @@
+package com.hmdp.service.impl;
+
+import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.entity.CacheOutbox;
+import com.hmdp.mapper.CacheOutboxMapper;
+import com.hmdp.service.ICacheOutboxService;
+import org.springframework.stereotype.Service;
+
+/**
+ * <p>
+ * 缓存失效事件表 服务实现类
+ * </p>
+ *
+ * @author CHEN
+ * @since 2022-10-28
+ */
+@Service
+public class CacheOutboxServiceImpl extends ServiceImpl<CacheOutboxMapper, CacheOutbox> implements ICacheOutboxService {
+
+}
@@ -48,7 +48,7 @@ public class FollowServiceImpl extends ServiceImpl<FollowMapper, Follow> impleme
             follow.setUserId(id);
             boolean isSuccess = save(follow);
             if (isSuccess){
-                String key="follows:"+id;
+                String key=RedisConstants.FOLLOWS_KEY+id;
                 stringRedisTemplate.opsForSet().add(key,followUserId.toString());
             }
         }else {
@@ -58,8 +58,8 @@ public class FollowServiceImpl extends ServiceImpl<FollowMapper, Follow> impleme
                     .eq(Follow::getFollowUserId, followUserId)
             );
             if (isSuccess) {
-                String key="follows:"+id;
-                stringRedisTemplate.opsForSet().remove(key,followUserId);
+                String key=RedisConstants.FOLLOWS_KEY+id;
+                stringRedisTemplate.opsForSet().remove(key,followUserId.toString());
             }
         }
         return Result.ok();
@@ -81,9 +81,9 @@ public class FollowServiceImpl extends ServiceImpl<FollowMapper, Follow> impleme
     public Result followCommons(Long id) {
         //获取登陆用户
         Long userId = UserHolder.getUser().getId();
-        String key="follows:"+userId;
+        String key=RedisConstants.FOLLOWS_KEY+userId;
         //求交集
-        String key2="follows:"+id;
+        String key2=RedisConstants.FOLLOWS_KEY+id;
         Set<String> intersect = stringRedisTemplate.opsForSet().intersect(key, key2);
         if (intersect==null||intersect.isEmpty()) {
             return Result.ok(Collections.emptyList());
@@ -58,6 +58,15 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         return Result.ok(shop);
     }
 
+    @Override
+    public Result saveShop(Shop shop) {
+        //写入数据库
+        save(shop);
+        //写入布隆过滤器
+        cacheClient.addToBloomFilter(CACHE_SHOP_KEY, shop.getId());
+        return Result.ok(shop.getId());
+    }
+
     /**
      * 互斥锁解决缓存击穿
      *
@@ -196,8 +205,9 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         }
         //更新数据库
         updateById(shop);
-        //删除缓存
-        stringRedisTemplate.delete(CACHE_SHOP_KEY + shop.getId());
+        //删除缓存 并通知所有节点失效本地缓存
+        //事务提交后CacheOutboxJob会根据触发器写入的事件再删除一次 并修正geo
+        cacheClient.delete(CACHE_SHOP_KEY + shop.getId());
         return Result.ok();
     }
 
@@ -1,6 +1,5 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.core.bean.BeanUtil;
 import com.baomidou.mybatisplus.core.conditions.update.LambdaUpdateWrapper;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.dto.Result;
@@ -11,26 +10,21 @@ import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
 import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SeckillGate;
+import com.hmdp.utils.SeckillStockClient;
 import com.hmdp.utils.UserHolder;
 import lombok.extern.slf4j.Slf4j;
 import org.jetbrains.annotations.NotNull;
 import org.redisson.api.RLock;
 import org.redisson.api.RedissonClient;
 import org.springframework.context.annotation.Lazy;
-import org.springframework.core.io.ClassPathResource;
-import org.springframework.data.redis.connection.stream.*;
-import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.dao.DuplicateKeyException;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
-import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
-import java.time.Duration;
-import java.util.Collections;
-import java.util.List;
-import java.util.Map;
-import java.util.concurrent.*;
+import java.util.*;
+import java.util.stream.Collectors;
 
 /**
  * <p>
@@ -50,85 +44,19 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     @Resource
     private RedissonClient redissonClient;
     @Resource
-    private StringRedisTemplate stringRedisTemplate;
+    private SeckillStockClient seckillStockClient;
+    @Resource
+    private SeckillGate seckillGate;
     /**
      * 自己注入自己为了获取代理对象 @Lazy 延迟注入 避免形成循环依赖
      */
     @Resource
     @Lazy
     private IVoucherOrderService voucherOrderService;
-    private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
     //    private static final BlockingQueue<VoucherOrder> orderTasks=new ArrayBlockingQueue<>(1024*1024);
-    private static final ExecutorService SECKILL_ORDER_EXECUTOR = Executors.newSingleThreadExecutor();
 
-    @PostConstruct
-    private void init() {
-        SECKILL_ORDER_EXECUTOR.submit(() -> {
-            String queueName="stream.orders";
-            while (true) {
-                try {
-                    //从消息队列中获取订单信息
-                    List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1")
-                            , StreamReadOptions.empty().count(1).block(Duration.ofSeconds(2))
-                            , StreamOffset.create(queueName, ReadOffset.lastConsumed())
-                    );
-                    //判断消息时候获取成功
-                    if (list==null||list.isEmpty()){
-                        //获取失败 没有消息 继续循环
-                        continue;
-                    }
-                    //获取成功 解析消息
-                    MapRecord<String, Object, Object> record = list.get(0);
-                    Map<Object, Object> values = record.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(values, new VoucherOrder(), true);
-                    //下单
-                    handleVoucherOrder(voucherOrder);
-                    //ack确认消息
-                    stringRedisTemplate.opsForStream().acknowledge(queueName,"g1",record.getId());
-                } catch (Exception e) {
-                    e.printStackTrace();
-                    handlePendingList();
-                }
-            }
-        });
-    }
-
-    private void handlePendingList() {
-        String queueName="stream.orders";
-        while (true){
-            try {
-                //从消息队列中获取订单信息
-                List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                        Consumer.from("g1", "c1")
-                        , StreamReadOptions.empty().count(1)
-                        , StreamOffset.create(queueName, ReadOffset.from("0"))
-                );
-                //判断消息时候获取成功
-                if (list==null||list.isEmpty()){
-                    //获取失败 没有消息 继续循环
-                    break;
-                }
-                //获取成功 解析消息
-                MapRecord<String, Object, Object> record = list.get(0);
-                Map<Object, Object> values = record.getValue();
-                VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(values, new VoucherOrder(), true);
-                //下单
-                handleVoucherOrder(voucherOrder);
-                //ack确认消息
-                stringRedisTemplate.opsForStream().acknowledge(queueName,"g1",record.getId());
-            } catch (Exception e) {
-                e.printStackTrace();
-                try {
-                    Thread.sleep(20);
-                } catch (InterruptedException ex) {
-                    throw new RuntimeException(ex);
-                }
-            }
-        }
-    }
-
-    private void handleVoucherOrder(VoucherOrder voucherOrder) {
+    @Override
+    public void handleVoucherOrder(VoucherOrder voucherOrder) {
         Long userId = voucherOrder.getUserId();
         //创建锁对象（兜底）
         RLock lock = redissonClient.getLock("lock:order:" + userId);
@@ -148,10 +76,89 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 
     }
 
-    static {
-        SECKILL_SCRIPT = new DefaultRedisScript<>();
-        SECKILL_SCRIPT.setLocation(new ClassPathResource("seckill.lua"));
-        SECKILL_SCRIPT.setResultType(Long.class);
+    @Override
+    public Set<Long> handleVoucherOrders(List<VoucherOrder> voucherOrders) {
+        Set<Long> created = new HashSet<>(voucherOrders.size() * 2);
+        if (voucherOrders.isEmpty()) {
+            return created;
+        }
+        try {
+            //一人一单已由lua脚本保证 批量写入不再逐个加锁
+            voucherOrderService.createVoucherOrders(voucherOrders);
+            voucherOrders.forEach(order -> created.add(order.getId()));
+            return created;
+        } catch (Exception e) {
+            //主键冲突(重复投递)或库存扣减失败 整批回滚后逐条处理
+            log.warn("批量创建订单失败 逐条处理 数量:{} 原因:{}", voucherOrders.size(), e.getMessage());
+        }
+        //重复投递的订单已经落库 不再扣减库存
+        lambdaQuery()
+                .select(VoucherOrder::getId)
+                .in(VoucherOrder::getId, voucherOrders.stream().map(VoucherOrder::getId).collect(Collectors.toList()))
+                .list()
+                .forEach(order -> created.add(order.getId()));
+        for (VoucherOrder voucherOrder : voucherOrders) {
+            if (created.contains(voucherOrder.getId())) {
+                continue;
+            }
+            try {
+                handleVoucherOrder(voucherOrder);
+                created.add(voucherOrder.getId());
+            } catch (DuplicateKeyException e) {
+                //订单已经落库
+                created.add(voucherOrder.getId());
+            } catch (Exception e) {
+                //不确认 留在pending list中由回收任务重试 超过投递次数后转入死信队列
+                log.error("创建订单失败 orderId:{}", voucherOrder.getId(), e);
+            }
+        }
+        return created;
+    }
+
+    @Override
+    @Transactional(rollbackFor = Exception.class)
+    public void createVoucherOrders(List<VoucherOrder> voucherOrders) {
+        //每张券扣减一次库存
+        Map<Long, Long> countMap = voucherOrders.stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId, Collectors.counting()));
+        countMap.forEach((voucherId, count) -> {
+            boolean isSuccess = seckillVoucherService.update(
+                    new LambdaUpdateWrapper<SeckillVoucher>()
+                            .eq(SeckillVoucher::getVoucherId, voucherId)
+                            .ge(SeckillVoucher::getStock, count)
+                            .setSql("stock=stock-" + count));
+            if (!isSuccess) {
+                throw new IllegalStateException("库存不足 voucherId:" + voucherId + " 扣减数量:" + count);
+            }
+        });
+        //一次插入所有订单
+        getBaseMapper().insertBatch(voucherOrders);
+    }
+
+    @Override
+    @Transactional(rollbackFor = Exception.class)
+    public List<VoucherOrder> cancelVoucherOrders(List<Long> orderIds) {
+        //锁定仍未支付的订单 避免和支付并发修改
+        List<VoucherOrder> unpaid = lambdaQuery()
+                .in(VoucherOrder::getId, orderIds)
+                .eq(VoucherOrder::getStatus, VoucherOrder.STATUS_UNPAID)
+                .last("FOR UPDATE")
+                .list();
+        if (unpaid.isEmpty()) {
+            return unpaid;
+        }
+        lambdaUpdate()
+                .set(VoucherOrder::getStatus, VoucherOrder.STATUS_CANCELLED)
+                .in(VoucherOrder::getId, unpaid.stream().map(VoucherOrder::getId).collect(Collectors.toList()))
+                .update();
+        //每张券归还一次库存
+        Map<Long, Long> countMap = unpaid.stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId, Collectors.counting()));
+        countMap.forEach((voucherId, count) -> seckillVoucherService.update(
+                new LambdaUpdateWrapper<SeckillVoucher>()
+                        .eq(SeckillVoucher::getVoucherId, voucherId)
+                        .setSql("stock=stock+" + count)));
+        return unpaid;
     }
 
     /**
@@ -164,23 +171,47 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     public Result seckillVoucher(Long voucherId) {
         //获取用户
         UserDTO user = UserHolder.getUser();
+        //本地预先检查秒杀时间
+        int window = seckillStockClient.checkWindow(voucherId);
+        if (window != SeckillStockClient.SUCCESS) {
+            return Result.fail(failMessage(window));
+        }
+        //本地售罄标记和令牌桶 大部分抢不到的请求不访问redis
+        if (!seckillGate.tryAcquire(voucherId)) {
+            return Result.fail("库存不足");
+        }
         //获取订单id
         Long orderId = redisIdWorker.nextId("order");
-        //执行lua脚本
-        Long res = stringRedisTemplate.execute(
-                SECKILL_SCRIPT
-                , Collections.emptyList()
-                , voucherId.toString()
-                , user.getId().toString()
-                , orderId.toString());
+        //执行lua脚本 扣减库存(分片时在用户所在分片) 并发送订单消息
+        int r = seckillStockClient.seckill(voucherId, user.getId(), orderId);
+        if (r == SeckillStockClient.SOLD_OUT) {
+            seckillGate.markSoldOut(voucherId);
+        } else if (r != SeckillStockClient.SUCCESS) {
+            //重复下单、不在秒杀时间内 没有消耗库存
+            seckillGate.release(voucherId);
+        }
         //判断结果是否为0
-        int r = res.intValue();
-        if (r != 0) {
+        if (r != SeckillStockClient.SUCCESS) {
             //不为0 没有购买资格
-            return Result.fail(r == 1 ? "库存不足" : "禁止重复下单");
+            return Result.fail(failMessage(r));
         }
         return Result.ok(orderId);
     }
+
+    private static String failMessage(int r) {
+        switch (r) {
+            case SeckillStockClient.SOLD_OUT:
+                return "库存不足";
+            case SeckillStockClient.DUPLICATE:
+                return "禁止重复下单";
+            case SeckillStockClient.NOT_STARTED:
+                return "秒杀尚未开始";
+            case SeckillStockClient.ENDED:
+                return "秒杀已经结束";
+            default:
+                return "秒杀失败";
+        }
+    }
     /**
      * 秒杀优惠券(异步)
      *
@@ -308,6 +339,10 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
                         .eq(SeckillVoucher::getVoucherId, voucherOrder.getVoucherId())
                         .gt(SeckillVoucher::getStock, 0)
                         .setSql("stock=stock-1"));
+        if (!isSuccess) {
+            //数据库库存不足 不能创建订单 否则会超卖
+            throw new IllegalStateException("库存不足 voucherId:" + voucherOrder.getVoucherId());
+        }
         //创建订单
         this.save(voucherOrder);
     }
@@ -1,42 +1,156 @@
 package com.hmdp.utils;
 
-import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
-import com.baomidou.mybatisplus.core.toolkit.StringUtils;
+import cn.hutool.core.util.RandomUtil;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import com.hmdp.entity.Shop;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.ReadOffset;
+import org.springframework.data.redis.connection.stream.StreamOffset;
+import org.springframework.data.redis.connection.stream.StreamReadOptions;
+import org.springframework.data.redis.connection.stream.StreamRecords;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.types.Expiration;
 import org.springframework.stereotype.Component;
 
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.time.ZoneId;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.ToDoubleFunction;
 
 import static com.hmdp.utils.RedisConstants.*;
 
 /**
  * redis工具
+ * <p>
+ * 两级缓存: 本地caffeine(L1) + redis(L2), 删除和写入redis后通过redis发布订阅失效所有节点的L1
+ * 失效时递增key所在分段的版本号 读取前记录版本号 写入L1后版本号已变化则撤销 避免失效前读到的旧值在失效后写入L1
+ * 注意: L1命中时返回的是共享对象 调用方不要修改
+ * 序列化方式由{@link CacheCodec}决定 空字符串表示空值
+ * 缓存未命中时 本节点内同一个key只有一个线程查询数据库(SingleFlight) 节点之间通过redis互斥锁合并
+ * 注册了布隆过滤器的keyPrefix 不存在的id在查询redis和数据库之前直接拒绝
+ * 新增的id通过发布订阅通知其他节点 同时写入有界stream bloom:added 各节点定时补读 漏掉的通知(断线重连 GC停顿)不会导致误拒
+ * 过期时间附加随机抖动 避免同一批写入的key同时过期; 最近被读取的逻辑过期key在过期前提前刷新
+ * 读取频率超过阈值的热点key自动固定在本地内存(短过期时间 不受本地缓存容量淘汰影响)
  *
  * @author CHEN
  * @date 2022/10/08
  */
 @Slf4j
 @Component
-public class CacheClient {
+public class CacheClient implements MessageListener {
     private final StringRedisTemplate stringRedisTemplate;
+    private final CacheCodec cacheCodec;
+    private final MeterRegistry meterRegistry;
+    private final CacheRebuildExecutor cacheRebuildExecutor;
+    private final HotKeyDetector hotKeyDetector;
+    /**
+     * 本地缓存 key -> RedisData(data为已反序列化的对象 逻辑过期时间可为空)
+     */
+    private final Cache<String, RedisData> localCache;
+    /**
+     * 热点key本地固定 key -> RedisData
+     */
+    private final Cache<String, RedisData> pinnedCache;
+    /**
+     * 本节点内的请求合并
+     */
+    private final SingleFlight singleFlight = new SingleFlight();
+    /**
+     * 布隆过滤器 keyPrefix -> 过滤器
+     */
+    private final Map<String, LocalBloomFilter> bloomFilters = new ConcurrentHashMap<>();
+    /**
+     * 正在重建的布隆过滤器 keyPrefix -> 过滤器 重建期间新增的id同时写入 替换后不会丢失
+     */
+    private final Map<String, LocalBloomFilter> buildingBloomFilters = new ConcurrentHashMap<>();
+    /**
+     * 已补读到的 bloom:added 消息id
+     */
+    private volatile String bloomStreamOffset = "0-0";
+    /**
+     * bloom:added 保留的消息数量(近似)
+     */
+    @Value("${hmdp.bloom.stream-max-length:100000}")
+    private long bloomStreamMaxLength;
+    /**
+     * 未获取到互斥锁时的重试次数和间隔(毫秒)
+     */
+    private static final int MUTEX_RETRY_TIMES = 20;
+    private static final long MUTEX_RETRY_INTERVAL = 50L;
+    /**
+     * 最近读取的逻辑过期key key -> 刷新信息
+     */
+    private final Map<String, RefreshEntry> refreshEntries = new ConcurrentHashMap<>();
+    /**
+     * 本地缓存失效版本号 按key的hash分段 内存固定
+     */
+    private static final int GENERATION_STRIPES = 4096;
+    private final AtomicLongArray generations = new AtomicLongArray(GENERATION_STRIPES);
+    /**
+     * 过期时间随机抖动比例 如0.1表示在原过期时间基础上随机增加0~10%
+     */
+    @Value("${hmdp.cache.ttl-jitter:0.1}")
+    private double ttlJitter;
+    /**
+     * 达到过期时间的该比例时提前刷新
+     */
+    @Value("${hmdp.cache.refresh-ahead.ratio:0.8}")
+    private double refreshAheadRatio;
+    /**
+     * 超过该时间(毫秒)未被读取的key不再提前刷新
+     */
+    @Value("${hmdp.cache.refresh-ahead.idle:60000}")
+    private long refreshAheadIdle;
+    /**
+     * 最多跟踪的key数量
+     */
+    @Value("${hmdp.cache.refresh-ahead.max-keys:10000}")
+    private int refreshAheadMaxKeys;
 
     @Autowired
-    public CacheClient(StringRedisTemplate stringRedisTemplate) {
+    public CacheClient(StringRedisTemplate stringRedisTemplate
+            , CacheCodec cacheCodec
+            , MeterRegistry meterRegistry
+            , CacheRebuildExecutor cacheRebuildExecutor
+            , HotKeyDetector hotKeyDetector
+            , @Value("${hmdp.cache.local.maximum-size:10000}") long localMaximumSize
+            , @Value("${hmdp.cache.local.expire-seconds:30}") long localExpireSeconds
+            , @Value("${hmdp.cache.hot-key.pin-maximum-size:1000}") long pinMaximumSize
+            , @Value("${hmdp.cache.hot-key.pin-seconds:5}") long pinSeconds) {
         this.stringRedisTemplate = stringRedisTemplate;
+        this.cacheCodec = cacheCodec;
+        this.meterRegistry = meterRegistry;
+        this.cacheRebuildExecutor = cacheRebuildExecutor;
+        this.hotKeyDetector = hotKeyDetector;
+        this.localCache = Caffeine.newBuilder()
+                .maximumSize(localMaximumSize)
+                .expireAfterWrite(localExpireSeconds, TimeUnit.SECONDS)
+                .build();
+        this.pinnedCache = Caffeine.newBuilder()
+                .maximumSize(pinMaximumSize)
+                .expireAfterWrite(pinSeconds, TimeUnit.SECONDS)
+                .build();
     }
 
     /**
-     * 将任意对象序列化成json存入redis
+     * 将任意对象序列化后存入redis
      *
      * @param key   关键
      * @param value 价值
@@ -44,11 +158,12 @@ public class CacheClient {
      * @param unit  单位
      */
     public void set(String key, Object value, Long time, TimeUnit unit) {
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value), time, unit);
+        setRaw(key, cacheCodec.encode(value), withJitter(unit.toMillis(time)), TimeUnit.MILLISECONDS);
+        invalidate(Collections.singletonList(key));
     }
 
     /**
-     * 将任意对象序列化成json存入redis 并且携带逻辑过期时间
+     * 将任意对象序列化后存入redis 并且携带逻辑过期时间
      *
      * @param key   关键
      * @param value 价值
@@ -59,9 +174,198 @@ public class CacheClient {
         //封装逻辑过期时间
         RedisData redisData = new RedisData();
         redisData.setData(value);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(unit.toSeconds(time)));
+        redisData.setExpireTime(LocalDateTime.now().plusNanos(TimeUnit.MILLISECONDS.toNanos(withJitter(unit.toMillis(time)))));
         //存入redis
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(redisData));
+        setRaw(key, cacheCodec.encode(redisData), null, null);
+        invalidate(Collections.singletonList(key));
+    }
+
+    /**
+     * 批量写入逻辑过期数据 通过管道一次发送
+     *
+     * @param values key -> 数据
+     * @param time   逻辑过期时间
+     * @param unit   单位
+     */
+    public void setWithLogicalExpire(Map<String, ?> values, Long time, TimeUnit unit) {
+        if (values.isEmpty()) {
+            return;
+        }
+        long millis = unit.toMillis(time);
+        Map<byte[], byte[]> encoded = new LinkedHashMap<>(values.size() * 2);
+        values.forEach((key, value) -> {
+            RedisData redisData = new RedisData();
+            redisData.setData(value);
+            redisData.setExpireTime(LocalDateTime.now().plusNanos(TimeUnit.MILLISECONDS.toNanos(withJitter(millis))));
+            encoded.put(key.getBytes(StandardCharsets.UTF_8), cacheCodec.encode(redisData));
+        });
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            encoded.forEach((rawKey, value) -> connection.stringCommands()
+                    .set(rawKey, value, Expiration.persistent(), RedisStringCommands.SetOption.upsert()));
+            return null;
+        });
+        invalidate(values.keySet());
+    }
+
+    /**
+     * 删除缓存 并通知所有节点失效本地缓存
+     *
+     * @param key 关键
+     */
+    public void delete(String key) {
+        stringRedisTemplate.delete(key);
+        invalidate(Collections.singletonList(key));
+    }
+
+    /**
+     * 批量删除缓存 一次DEL 失效通知通过管道发送
+     *
+     * @param keys 键
+     */
+    public void delete(Collection<String> keys) {
+        if (keys.isEmpty()) {
+            return;
+        }
+        stringRedisTemplate.delete(keys);
+        invalidate(keys);
+    }
+
+    /**
+     * 失效本节点的本地缓存 并通过管道通知其他节点
+     *
+     * @param keys 键
+     */
+    private void invalidate(Collection<String> keys) {
+        keys.forEach(this::invalidateLocal);
+        byte[] channel = CACHE_INVALIDATE_CHANNEL.getBytes(StandardCharsets.UTF_8);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (String key : keys) {
+                connection.publish(channel, key.getBytes(StandardCharsets.UTF_8));
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 收到失效通知 删除本地缓存
+     *
+     * @param message 消息
+     * @param pattern 模式
+     */
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String channel = new String(message.getChannel(), StandardCharsets.UTF_8);
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        if (BLOOM_FILTER_CHANNEL.equals(channel)) {
+            //其他节点新增了数据 keyPrefix|id
+            int index = body.lastIndexOf('|');
+            putBloomFilter(body.substring(0, index), body.substring(index + 1));
+            return;
+        }
+        invalidateLocal(body);
+    }
+
+    /**
+     * 开始重建布隆过滤器 之后新增的id同时写入正在重建的过滤器 直到调用registerBloomFilter替换
+     *
+     * @param keyPrefix   关键前缀
+     * @param bloomFilter 正在重建的布隆过滤器
+     */
+    public void beginBloomFilterBuild(String keyPrefix, LocalBloomFilter bloomFilter) {
+        buildingBloomFilters.put(keyPrefix, bloomFilter);
+    }
+
+    /**
+     * 注册(替换)布隆过滤器
+     *
+     * @param keyPrefix   关键前缀
+     * @param bloomFilter 布隆过滤器
+     */
+    public void registerBloomFilter(String keyPrefix, LocalBloomFilter bloomFilter) {
+        LocalBloomFilter old = bloomFilters.put(keyPrefix, bloomFilter);
+        //先替换再结束双写 写入方先读重建中的过滤器 不会漏写
+        buildingBloomFilters.remove(keyPrefix, bloomFilter);
+        if (old != null) {
+            return;
+        }
+        //首次注册 监控内存和误判率
+        bloomGauge("cache.bloom.memory", keyPrefix, LocalBloomFilter::memoryBytes).baseUnit("bytes").register(meterRegistry);
+        bloomGauge("cache.bloom.insertions", keyPrefix, LocalBloomFilter::getInsertions).register(meterRegistry);
+        bloomGauge("cache.bloom.fpp.expected", keyPrefix, LocalBloomFilter::getExpectedFpp).register(meterRegistry);
+        bloomGauge("cache.bloom.fpp.current", keyPrefix, LocalBloomFilter::currentFpp).register(meterRegistry);
+    }
+
+    /**
+     * id可能存在 未注册布隆过滤器时始终返回true
+     *
+     * @param keyPrefix 关键前缀
+     * @param id        id
+     * @return boolean
+     */
+    public boolean mightContain(String keyPrefix, Object id) {
+        LocalBloomFilter bloomFilter = bloomFilters.get(keyPrefix);
+        if (bloomFilter == null || bloomFilter.mightContain(id)) {
+            return true;
+        }
+        meterRegistry.counter("cache.bloom.rejected", "prefix", keyPrefix).increment();
+        return false;
+    }
+
+    /**
+     * 新增数据后写入布隆过滤器 并通知所有节点
+     *
+     * @param keyPrefix 关键前缀
+     * @param id        id
+     */
+    public void addToBloomFilter(String keyPrefix, Object id) {
+        putBloomFilter(keyPrefix, id);
+        String body = keyPrefix + "|" + id;
+        stringRedisTemplate.convertAndSend(BLOOM_FILTER_CHANNEL, body);
+        //发布订阅不保证送达 同时写入stream供各节点补读
+        stringRedisTemplate.opsForStream().add(StreamRecords.newRecord()
+                .in(BLOOM_FILTER_STREAM_KEY)
+                .ofMap(Collections.singletonMap("v", body)));
+        stringRedisTemplate.opsForStream().trim(BLOOM_FILTER_STREAM_KEY, bloomStreamMaxLength, true);
+    }
+
+    /**
+     * 从 bloom:added 补读上次之后新增的id 由定时任务调用 重复写入布隆过滤器没有影响
+     */
+    public void resyncBloomFilters() {
+        StreamReadOptions options = StreamReadOptions.empty().count(1000);
+        while (true) {
+            List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream().read(options
+                    , StreamOffset.create(BLOOM_FILTER_STREAM_KEY, ReadOffset.from(bloomStreamOffset)));
+            if (records == null || records.isEmpty()) {
+                return;
+            }
+            for (MapRecord<String, Object, Object> record : records) {
+                Object body = record.getValue().get("v");
+                int index = body == null ? -1 : body.toString().lastIndexOf('|');
+                if (index > 0) {
+                    putBloomFilter(body.toString().substring(0, index), body.toString().substring(index + 1));
+                }
+            }
+            bloomStreamOffset = records.get(records.size() - 1).getId().getValue();
+            if (records.size() < 1000) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * 写入当前的过滤器 重建期间同时写入正在重建的过滤器
+     */
+    private void putBloomFilter(String keyPrefix, Object id) {
+        //必须先读重建中的过滤器: 读到null说明已经替换完成 此时当前的过滤器就是新的
+        LocalBloomFilter building = buildingBloomFilters.get(keyPrefix);
+        LocalBloomFilter bloomFilter = bloomFilters.get(keyPrefix);
+        if (building != null) {
+            building.put(id);
+        }
+        if (bloomFilter != null && bloomFilter != building) {
+            bloomFilter.put(id);
+        }
     }
 
     /**
@@ -83,31 +387,135 @@ public class CacheClient {
             , Long time
             , TimeUnit unit) {
         String key = keyPrefix + id;
+        //统计访问频率
+        boolean hot = hotKeyDetector.record(key);
+        //读取前的失效版本号
+        long generation = generation(key);
+        //从本地缓存中查询
+        RedisData local = getLocal(key);
+        if (local != null && type.isInstance(local.getData())) {
+            if (hot) {
+                pin(key, local, generation);
+            }
+            return type.cast(local.getData());
+        }
+        //布隆过滤器判断 一定不存在直接返回
+        if (!mightContain(keyPrefix, id)) {
+            return null;
+        }
         //从redis中查询
-        String json = stringRedisTemplate.opsForValue().get(key);
+        byte[] bytes = getRaw(key);
         //判断是否存在
-        if (StringUtils.isNotEmpty(json)) {
-            //存在直接返回
-            return JSONUtil.toBean(json, type);
+        if (bytes != null && bytes.length > 0) {
+            //存在 写入本地缓存并返回
+            R r = decode(key, bytes, type);
+            if (r != null) {
+                putLocal(key, r, null, generation);
+                if (hot) {
+                    pin(key, localCache.getIfPresent(key), generation);
+                }
+                return r;
+            }
         }
         //判断空值
-        if ("".equals(json)) {
+        if (bytes != null && bytes.length == 0) {
             return null;
         }
-        //不存在 查询数据库
-        R r = dbFallback.apply(id);
-        if (r == null) {
-            //redis写入空值
-            this.set(key, "", CACHE_NULL_TTL, TimeUnit.SECONDS);
-            //数据库不存在 返回错误
-            return null;
-        }
-        //数据库存在 写入redis
-        this.set(key, r, time, unit);
+        //不存在 合并请求后查询数据库
+        R r = singleFlight.execute(key, () -> loadWithMutex(key, id, dbFallback
+                , cached -> decode(key, cached, type)
+                , value -> this.set(key, value, time, unit)));
+        putLocal(key, r, null, generation);
         //返回
         return r;
     }
 
+    /**
+     * 批量查询 一次MGET 未命中的一次批量查询数据库 一次管道回写
+     * <p>
+     * 不经过本地缓存 返回的对象调用方可以修改
+     *
+     * @param keyPrefix      关键前缀
+     * @param ids            id集合
+     * @param type           类型
+     * @param bulkDbFallback 批量db回退 返回id到数据的映射 不存在的id不返回
+     * @param time           时间
+     * @param unit           单位
+     * @return 按ids顺序排列的id到数据的映射 不存在的id不包含在内
+     */
+    public <R, ID> Map<ID, R> queryBatch(String keyPrefix
+            , Collection<ID> ids
+            , Class<R> type
+            , Function<Collection<ID>, Map<ID, R>> bulkDbFallback
+            , Long time
+            , TimeUnit unit) {
+        //布隆过滤器过滤 去重并保持顺序
+        List<ID> idList = new ArrayList<>(new LinkedHashSet<>(ids));
+        idList.removeIf(id -> !mightContain(keyPrefix, id));
+        if (idList.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        //从redis中批量查询
+        byte[][] rawKeys = new byte[idList.size()][];
+        for (int i = 0; i < idList.size(); i++) {
+            rawKeys[i] = (keyPrefix + idList.get(i)).getBytes(StandardCharsets.UTF_8);
+        }
+        List<byte[]> values = stringRedisTemplate.execute((RedisCallback<List<byte[]>>) connection ->
+                connection.stringCommands().mGet(rawKeys));
+        Map<ID, R> result = new HashMap<>(idList.size() * 2);
+        List<ID> misses = new ArrayList<>();
+        for (int i = 0; i < idList.size(); i++) {
+            ID id = idList.get(i);
+            byte[] bytes = values == null ? null : values.get(i);
+            //空值 数据库不存在
+            if (bytes != null && bytes.length == 0) {
+                continue;
+            }
+            R r = bytes == null ? null : decode(keyPrefix + id, bytes, type);
+            if (r == null) {
+                misses.add(id);
+            } else {
+                result.put(id, r);
+            }
+        }
+        //未命中 批量查询数据库并管道回写
+        if (!misses.isEmpty()) {
+            Map<ID, R> loaded = bulkDbFallback.apply(misses);
+            Map<byte[], byte[]> hits = new HashMap<>(misses.size() * 2);
+            List<byte[]> nulls = new ArrayList<>();
+            for (ID id : misses) {
+                R r = loaded.get(id);
+                byte[] rawKey = (keyPrefix + id).getBytes(StandardCharsets.UTF_8);
+                if (r == null) {
+                    nulls.add(rawKey);
+                } else {
+                    result.put(id, r);
+                    hits.put(rawKey, cacheCodec.encode(r));
+                }
+            }
+            long ttlMillis = unit.toMillis(time);
+            Expiration nullExpiration = Expiration.from(CACHE_NULL_TTL, TimeUnit.SECONDS);
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                hits.forEach((rawKey, value) -> connection.stringCommands().set(rawKey
+                        , value
+                        , Expiration.milliseconds(withJitter(ttlMillis))
+                        , RedisStringCommands.SetOption.upsert()));
+                nulls.forEach(rawKey -> connection.stringCommands()
+                        .set(rawKey, new byte[0], nullExpiration, RedisStringCommands.SetOption.upsert()));
+                return null;
+            });
+        }
+        //按请求顺序返回
+        Map<ID, R> ordered = new LinkedHashMap<>(result.size() * 2);
+        for (ID id : idList) {
+            R r = result.get(id);
+            if (r != null) {
+                ordered.put(id, r);
+            }
+        }
+        return ordered;
+    }
+
     /**
      * 逻辑过期解决缓存击穿
      *
@@ -121,52 +529,389 @@ public class CacheClient {
             , Long time
             , TimeUnit unit) {
         String key = keyPrefix + id;
+        //统计访问频率
+        boolean hot = hotKeyDetector.record(key);
+        //读取前的失效版本号
+        long generation = generation(key);
+        //从本地缓存中查询 未逻辑过期直接返回
+        RedisData local = getLocal(key);
+        if (local != null
+                && type.isInstance(local.getData())
+                && local.getExpireTime() != null
+                && local.getExpireTime().isAfter(LocalDateTime.now())) {
+            if (hot) {
+                pin(key, local, generation);
+            }
+            trackRefresh(key, id, type, dbFallback, time, unit, local.getExpireTime());
+            return type.cast(local.getData());
+        }
+        //布隆过滤器判断 一定不存在直接返回
+        if (!mightContain(keyPrefix, id)) {
+            return null;
+        }
         //从redis中查询
-        String json = stringRedisTemplate.opsForValue().get(key);
-        //判断是否存在
-        if (StringUtils.isEmpty(json)) {
-            //不存在返回空
+        byte[] bytes = getRaw(key);
+        //判断空值
+        if (bytes != null && bytes.length == 0) {
             return null;
         }
         //命中 反序列化
-        RedisData redisData = JSONUtil.toBean(json, RedisData.class);
-        JSONObject jsonObject = (JSONObject) redisData.getData();
-        R r = BeanUtil.toBean(jsonObject, type);
+        RedisData redisData = bytes == null ? null : decodeWithLogicalExpire(key, bytes, type);
+        //未预热或数据格式不兼容 合并请求后查询数据库
+        if (redisData == null) {
+            return singleFlight.execute(key, () -> loadWithMutex(key, id, dbFallback
+                    , cached -> {
+                        RedisData cachedData = decodeWithLogicalExpire(key, cached, type);
+                        return cachedData == null ? null : type.cast(cachedData.getData());
+                    }
+                    , value -> this.setWithLogicalExpire(key, value, time, unit)));
+        }
+        R r = type.cast(redisData.getData());
         LocalDateTime expireTime = redisData.getExpireTime();
         //判断是否过期
         if (expireTime.isAfter(LocalDateTime.now())) {
-            //未过期 直接返回
+            //未过期 写入本地缓存并返回
+            putLocal(key, r, expireTime, generation);
+            if (hot) {
+                pin(key, localCache.getIfPresent(key), generation);
+            }
+            trackRefresh(key, id, type, dbFallback, time, unit, expireTime);
+            return r;
+        }
+        //已过期 本节点已在重建直接返回
+        if (cacheRebuildExecutor.isPending(key)) {
             return r;
         }
-        //已过期
         //获取互斥锁
-        String lockKey = LOCK_SHOP_KEY + id;
+        String lockKey = lockKey(key);
         boolean flag = tryLock(lockKey);
         //是否获取锁成功
         if (flag) {
-            //成功 异步重建
-            CACHE_REBUILD_EXECUTOR.submit(() -> {
+            //成功 异步重建 结束后释放锁
+            boolean submitted = cacheRebuildExecutor.submit(key, () -> {
+                //查询数据库
+                R newR = dbFallback.apply(id);
+                //写入redis
+                this.setWithLogicalExpire(key, newR, time, unit);
+            }, () -> unLock(lockKey));
+            if (!submitted) {
+                //提交失败 释放锁 等待下次读取再重建
+                unLock(lockKey);
+            }
+        }
+        //返回过期商铺信息
+        return r;
+    }
+
+    /**
+     * 提前刷新即将逻辑过期的key 由定时任务调用
+     */
+    public void refreshAhead() {
+        long now = System.currentTimeMillis();
+        refreshEntries.forEach((key, entry) -> {
+            if (now - entry.lastAccessTime > refreshAheadIdle) {
+                //最近未被读取 不再跟踪
+                refreshEntries.remove(key, entry);
+                return;
+            }
+            if (now >= entry.refreshTime) {
+                //下次读取时按新的过期时间重新跟踪
+                refreshEntries.remove(key, entry);
+                entry.refresher.run();
+            }
+        });
+    }
+
+    /**
+     * 记录逻辑过期key的读取
+     */
+    private <R, ID> void trackRefresh(String key
+            , ID id
+            , Class<R> type
+            , Function<ID, R> dbFallback
+            , Long time
+            , TimeUnit unit
+            , LocalDateTime expireTime) {
+        RefreshEntry entry = refreshEntries.get(key);
+        if (entry == null) {
+            if (refreshEntries.size() >= refreshAheadMaxKeys) {
+                return;
+            }
+            long ttlMillis = unit.toMillis(time);
+            long expireMillis = expireTime.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+            long refreshTime = expireMillis - (long) (ttlMillis * (1 - refreshAheadRatio));
+            entry = new RefreshEntry(refreshTime, () -> refresh(key, id, type, dbFallback, time, unit));
+            RefreshEntry existing = refreshEntries.putIfAbsent(key, entry);
+            if (existing != null) {
+                entry = existing;
+            }
+        }
+        entry.lastAccessTime = System.currentTimeMillis();
+    }
+
+    /**
+     * 异步刷新 其他节点已经刷新过时跳过
+     */
+    private <R, ID> void refresh(String key
+            , ID id
+            , Class<R> type
+            , Function<ID, R> dbFallback
+            , Long time
+            , TimeUnit unit) {
+        if (cacheRebuildExecutor.isPending(key)) {
+            return;
+        }
+        String lockKey = lockKey(key);
+        if (!tryLock(lockKey)) {
+            return;
+        }
+        long ttlMillis = unit.toMillis(time);
+        boolean submitted = cacheRebuildExecutor.submit(key, () -> {
+            //双重检查 其他节点可能已经刷新
+            byte[] bytes = getRaw(key);
+            RedisData current = bytes == null || bytes.length == 0 ? null : decodeWithLogicalExpire(key, bytes, type);
+            if (current != null && current.getExpireTime() != null) {
+                long remaining = current.getExpireTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli()
+                        - System.currentTimeMillis();
+                if (remaining > ttlMillis * (1 - refreshAheadRatio)) {
+                    return;
+                }
+            }
+            this.setWithLogicalExpire(key, dbFallback.apply(id), time, unit);
+        }, () -> unLock(lockKey));
+        if (!submitted) {
+            unLock(lockKey);
+        }
+    }
+
+    /**
+     * 过期时间附加随机抖动
+     *
+     * @param millis 毫秒
+     * @return long
+     */
+    private long withJitter(long millis) {
+        if (ttlJitter <= 0) {
+            return millis;
+        }
+        return millis + RandomUtil.randomLong((long) (millis * ttlJitter) + 1);
+    }
+
+    /**
+     * 通过redis互斥锁重建缓存 同一时刻所有节点只有一个线程查询数据库
+     *
+     * @param key         关键
+     * @param id          id
+     * @param dbFallback  db回退
+     * @param cacheReader 从缓存字节中读取数据
+     * @param cacheWriter 将数据库结果写入缓存
+     * @return {@link R}
+     */
+    private <R, ID> R loadWithMutex(String key
+            , ID id
+            , Function<ID, R> dbFallback
+            , Function<byte[], R> cacheReader
+            , Consumer<R> cacheWriter) {
+        String lockKey = lockKey(key);
+        for (int i = 0; i < MUTEX_RETRY_TIMES; i++) {
+            if (tryLock(lockKey)) {
                 try {
+                    //双重检查 其他节点可能已经重建完成
+                    byte[] bytes = getRaw(key);
+                    if (bytes != null && bytes.length == 0) {
+                        return null;
+                    }
+                    R cached = bytes == null ? null : cacheReader.apply(bytes);
+                    if (cached != null) {
+                        return cached;
+                    }
                     //查询数据库
-                    R newR = dbFallback.apply(id);
-                    //写入redis
-                    this.setWithLogicalExpire(key,newR,time,unit);
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
+                    R r = dbFallback.apply(id);
+                    if (r == null) {
+                        //redis写入空值
+                        setRaw(key, new byte[0], CACHE_NULL_TTL, TimeUnit.SECONDS);
+                        //数据库不存在 返回错误
+                        return null;
+                    }
+                    //数据库存在 写入redis
+                    cacheWriter.accept(r);
+                    return r;
                 } finally {
                     //释放锁
                     unLock(lockKey);
                 }
-            });
+            }
+            //其他节点正在重建 休眠后重新查询缓存
+            try {
+                Thread.sleep(MUTEX_RETRY_INTERVAL);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            byte[] bytes = getRaw(key);
+            if (bytes != null && bytes.length == 0) {
+                return null;
+            }
+            R cached = bytes == null ? null : cacheReader.apply(bytes);
+            if (cached != null) {
+                return cached;
+            }
         }
-        //返回过期商铺信息
-        return r;
+        //等待超时 直接查询数据库
+        log.warn("等待缓存重建超时 key:{}", key);
+        return dbFallback.apply(id);
     }
 
     /**
-     * 简易线程池
+     * 读取redis原始字节
+     *
+     * @param key 关键
+     * @return {@link byte[]}
      */
-    private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
+    private byte[] getRaw(String key) {
+        byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+        return stringRedisTemplate.execute((RedisCallback<byte[]>) connection ->
+                connection.stringCommands().get(rawKey));
+    }
+
+    /**
+     * 写入redis原始字节
+     *
+     * @param key   关键
+     * @param value 价值
+     * @param time  时间 为空时永不过期
+     * @param unit  单位
+     */
+    private void setRaw(String key, byte[] value, Long time, TimeUnit unit) {
+        byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+        Expiration expiration = time == null ? Expiration.persistent() : Expiration.from(time, unit);
+        stringRedisTemplate.execute((RedisCallback<Boolean>) connection ->
+                connection.stringCommands().set(rawKey, value, expiration, RedisStringCommands.SetOption.upsert()));
+    }
+
+    /**
+     * 反序列化 数据格式不兼容时(如切换编解码器)视为未命中
+     *
+     * @param key   关键
+     * @param bytes 字节
+     * @param type  类型
+     * @return {@link R}
+     */
+    private <R> R decode(String key, byte[] bytes, Class<R> type) {
+        try {
+            return cacheCodec.decode(bytes, type);
+        } catch (RuntimeException e) {
+            log.warn("缓存反序列化失败 key:{}", key, e);
+            return null;
+        }
+    }
+
+    /**
+     * 反序列化逻辑过期数据 数据格式不兼容时视为未命中
+     *
+     * @param key   关键
+     * @param bytes 字节
+     * @param type  类型
+     * @return {@link RedisData}
+     */
+    private RedisData decodeWithLogicalExpire(String key, byte[] bytes, Class<?> type) {
+        try {
+            return cacheCodec.decodeWithLogicalExpire(bytes, type);
+        } catch (RuntimeException e) {
+            log.warn("缓存反序列化失败 key:{}", key, e);
+            return null;
+        }
+    }
+
+    private Gauge.Builder<CacheClient> bloomGauge(String name
+            , String keyPrefix
+            , ToDoubleFunction<LocalBloomFilter> value) {
+        return Gauge.builder(name, this, c -> {
+                    LocalBloomFilter bloomFilter = c.bloomFilters.get(keyPrefix);
+                    return bloomFilter == null ? 0 : value.applyAsDouble(bloomFilter);
+                })
+                .tag("prefix", keyPrefix);
+    }
+
+    /**
+     * 读取本地缓存 优先读取固定的热点key
+     *
+     * @param key 关键
+     * @return {@link RedisData}
+     */
+    private RedisData getLocal(String key) {
+        RedisData pinned = pinnedCache.getIfPresent(key);
+        return pinned != null ? pinned : localCache.getIfPresent(key);
+    }
+
+    /**
+     * 固定热点key 已固定的不重复写入 保证固定时间到期后重新从redis读取
+     *
+     * @param key        关键
+     * @param redisData  数据
+     * @param generation 读取前的失效版本号
+     */
+    private void pin(String key, RedisData redisData, long generation) {
+        if (redisData == null || generation(key) != generation) {
+            return;
+        }
+        if (pinnedCache.asMap().putIfAbsent(key, redisData) == null && generation(key) != generation) {
+            //写入期间收到失效通知
+            pinnedCache.asMap().remove(key, redisData);
+        }
+    }
+
+    /**
+     * 失效本地缓存和固定的热点key 先递增版本号再删除
+     *
+     * @param key 关键
+     */
+    private void invalidateLocal(String key) {
+        generations.incrementAndGet(stripe(key));
+        localCache.invalidate(key);
+        pinnedCache.invalidate(key);
+    }
+
+    /**
+     * 写入本地缓存 读取后key已被失效时不写入
+     *
+     * @param key        关键
+     * @param value      已反序列化的对象
+     * @param expireTime 逻辑过期时间 可为空
+     * @param generation 读取前的失效版本号
+     */
+    private void putLocal(String key, Object value, LocalDateTime expireTime, long generation) {
+        if (value == null || generation(key) != generation) {
+            return;
+        }
+        RedisData redisData = new RedisData();
+        redisData.setData(value);
+        redisData.setExpireTime(expireTime);
+        localCache.put(key, redisData);
+        //写入期间收到失效通知 撤销写入(失效方先递增版本号再删除 两种顺序都不会留下旧值)
+        if (generation(key) != generation) {
+            localCache.asMap().remove(key, redisData);
+        }
+    }
+
+    private long generation(String key) {
+        return generations.get(stripe(key));
+    }
+
+    private static int stripe(String key) {
+        int h = key.hashCode();
+        return (h ^ (h >>> 16)) & (GENERATION_STRIPES - 1);
+    }
+
+    /**
+     * 互斥锁key 按缓存key区分命名空间 如lock:cache:shop:1
+     *
+     * @param key 缓存key
+     * @return {@link String}
+     */
+    private String lockKey(String key) {
+        return CACHE_LOCK_KEY + key;
+    }
 
     /**
      * 获取锁
@@ -187,4 +932,21 @@ public class CacheClient {
     private void unLock(String key) {
         stringRedisTemplate.delete(key);
     }
+
+    /**
+     * 提前刷新信息
+     */
+    private static class RefreshEntry {
+        /**
+         * 开始刷新的时间戳
+         */
+        private final long refreshTime;
+        private final Runnable refresher;
+        private volatile long lastAccessTime;
+
+        private RefreshEntry(long refreshTime, Runnable refresher) {
+            this.refreshTime = refreshTime;
+            this.refresher = refresher;
+        }
+    }
 }
@@ -0,0 +1,35 @@
+package com.hmdp.utils;
+
+/**
+ * 缓存编解码器
+ *
+ * @author CHEN
+ * @date 2022/10/21
+ */
+public interface CacheCodec {
+    /**
+     * 将任意对象编码为字节
+     *
+     * @param value 价值
+     * @return {@link byte[]}
+     */
+    byte[] encode(Object value);
+
+    /**
+     * 将字节解码为目标类型
+     *
+     * @param bytes 字节
+     * @param type  类型
+     * @return {@link R}
+     */
+    <R> R decode(byte[] bytes, Class<R> type);
+
+    /**
+     * 解码携带逻辑过期时间的数据 返回的data已是目标类型
+     *
+     * @param bytes 字节
+     * @param type  data的类型
+     * @return {@link RedisData}
+     */
+    RedisData decodeWithLogicalExpire(byte[] bytes, Class<?> type);
+}
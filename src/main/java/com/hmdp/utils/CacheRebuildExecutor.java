@@ -0,0 +1,146 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.thread.ThreadFactoryBuilder;
+import cn.hutool.core.util.RandomUtil;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Set;
+import java.util.concurrent.*;
+
+/**
+ * 缓存重建线程池
+ * <p>
+ * 有界队列 + 同一个key去重 + 失败重试(指数退避加随机抖动) + 监控指标 + 优雅停机
+ * 队列已满时拒绝提交 调用方继续返回旧数据 等待下一次读取再触发重建
+ *
+ * @author CHEN
+ * @date 2022/10/25
+ */
+@Slf4j
+@Component
+public class CacheRebuildExecutor implements DisposableBean {
+    private final ThreadPoolExecutor executor;
+    /**
+     * 排队中或执行中的key
+     */
+    private final Set<String> pendingKeys = ConcurrentHashMap.newKeySet();
+    private final int maxAttempts;
+    private final long retryIntervalMillis;
+    private final long shutdownTimeoutSeconds;
+    private final Timer rebuildTimer;
+    private final Counter failureCounter;
+    private final Counter retryCounter;
+    private final Counter rejectedCounter;
+
+    public CacheRebuildExecutor(MeterRegistry meterRegistry
+            , @Value("${hmdp.cache.rebuild.pool-size:10}") int poolSize
+            , @Value("${hmdp.cache.rebuild.queue-capacity:1000}") int queueCapacity
+            , @Value("${hmdp.cache.rebuild.max-attempts:3}") int maxAttempts
+            , @Value("${hmdp.cache.rebuild.retry-interval:100}") long retryIntervalMillis
+            , @Value("${hmdp.cache.rebuild.shutdown-timeout:30}") long shutdownTimeoutSeconds) {
+        this.executor = new ThreadPoolExecutor(poolSize
+                , poolSize
+                , 0L
+                , TimeUnit.MILLISECONDS
+                , new ArrayBlockingQueue<>(queueCapacity)
+                , ThreadFactoryBuilder.create().setNamePrefix("cache-rebuild-").build()
+                , new ThreadPoolExecutor.AbortPolicy());
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.retryIntervalMillis = retryIntervalMillis;
+        this.shutdownTimeoutSeconds = shutdownTimeoutSeconds;
+        Gauge.builder("cache.rebuild.queue.size", executor, e -> e.getQueue().size()).register(meterRegistry);
+        Gauge.builder("cache.rebuild.active", executor, ThreadPoolExecutor::getActiveCount).register(meterRegistry);
+        this.rebuildTimer = meterRegistry.timer("cache.rebuild.latency");
+        this.failureCounter = meterRegistry.counter("cache.rebuild.failures");
+        this.retryCounter = meterRegistry.counter("cache.rebuild.retries");
+        this.rejectedCounter = meterRegistry.counter("cache.rebuild.rejected");
+    }
+
+    /**
+     * 提交重建任务
+     *
+     * @param key      缓存key 用于去重
+     * @param task     重建任务
+     * @param onFinish 结束后执行(无论成功失败) 例如释放锁
+     * @return 是否提交成功 false时不会执行onFinish
+     */
+    public boolean submit(String key, Runnable task, Runnable onFinish) {
+        //同一个key已经在排队或执行
+        if (!pendingKeys.add(key)) {
+            return false;
+        }
+        try {
+            executor.execute(() -> {
+                long begin = System.nanoTime();
+                try {
+                    runWithRetry(key, task);
+                } finally {
+                    rebuildTimer.record(System.nanoTime() - begin, TimeUnit.NANOSECONDS);
+                    pendingKeys.remove(key);
+                    onFinish.run();
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            //队列已满或已停机
+            pendingKeys.remove(key);
+            rejectedCounter.increment();
+            log.warn("缓存重建队列已满 丢弃任务 key:{}", key);
+            return false;
+        }
+    }
+
+    /**
+     * 判断key是否正在重建
+     *
+     * @param key 关键
+     * @return boolean
+     */
+    public boolean isPending(String key) {
+        return pendingKeys.contains(key);
+    }
+
+    private void runWithRetry(String key, Runnable task) {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                task.run();
+                return;
+            } catch (RuntimeException e) {
+                if (attempt >= maxAttempts) {
+                    failureCounter.increment();
+                    log.error("缓存重建失败 key:{} 重试次数:{}", key, attempt, e);
+                    return;
+                }
+                retryCounter.increment();
+                log.warn("缓存重建失败 准备重试 key:{} 次数:{}", key, attempt, e);
+            }
+            //指数退避 加随机抖动避免多个key同时重试
+            long backoff = (retryIntervalMillis << (attempt - 1)) + RandomUtil.randomLong(retryIntervalMillis + 1);
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * 优雅停机 等待已提交的任务执行完成
+     */
+    @Override
+    public void destroy() throws InterruptedException {
+        executor.shutdown();
+        if (!executor.awaitTermination(shutdownTimeoutSeconds, TimeUnit.SECONDS)) {
+            log.warn("缓存重建线程池停机超时 剩余任务:{}", executor.getQueue().size());
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,314 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.connection.stream.StreamRecords;
+import org.springframework.data.redis.core.DefaultTypedTuple;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * feed流(推拉结合)
+ * <p>
+ * 发件箱: 每个作者一个zset feed:outbox:{authorId} 保存最近发布的博客 分数为发布时间(tb_blog.create_time的毫秒值)
+ * 收件箱: 普通作者发布后推送到活跃粉丝的 feed:{userId} 不活跃的粉丝不推送 下次阅读时从关注作者的发件箱补齐
+ * 大V: 粉丝数超过阈值的作者记录在 feed:bigv 不推送 粉丝阅读时把关注的大V发件箱和自己的收件箱合并
+ * 活跃度: feed:active 记录每个用户最近一次阅读feed的时间
+ * 收件箱只保留最近inboxSize条(推送时裁剪) 默认128条以内redis使用紧凑编码(listpack) 更早的博客阅读时从数据库拉取
+ * 发布时只写入发件箱并向 stream.feed 发送推送任务 由{@link com.hmdp.job.FeedFanoutWorker}在后台推送
+ *
+ * @author CHEN
+ * @date 2022/11/06
+ */
+@Slf4j
+@Component
+public class FeedClient {
+    public static final String FIELD_AUTHOR_ID = "authorId";
+    public static final String FIELD_BLOG_ID = "blogId";
+    public static final String FIELD_TIME = "time";
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final int outboxSize;
+    private final long activeMillis;
+    private final int backfillSize;
+    private final int inboxSize;
+
+    public FeedClient(StringRedisTemplate stringRedisTemplate
+            , @Value("${hmdp.feed.inbox-size:128}") int inboxSize
+            , @Value("${hmdp.feed.outbox-size:1000}") int outboxSize
+            , @Value("${hmdp.feed.active-days:7}") long activeDays
+            , @Value("${hmdp.feed.backfill-size:100}") int backfillSize) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.outboxSize = outboxSize;
+        this.activeMillis = TimeUnit.DAYS.toMillis(activeDays);
+        this.backfillSize = backfillSize;
+        this.inboxSize = inboxSize;
+    }
+
+    public int getInboxSize() {
+        return inboxSize;
+    }
+
+    /**
+     * 发布博客 写入作者发件箱(只保留最近outboxSize条)并发送推送任务 请求耗时与粉丝数无关
+     * 分数使用博客的create_time 与收件箱之前的博客从数据库拉取时的时间一致
+     *
+     * @param authorId 作者id
+     * @param blogId   博客id
+     * @param time     发布时间(毫秒) 即tb_blog.create_time
+     */
+    public void publish(Long authorId, Long blogId, long time) {
+        byte[] key = bytes(FEED_OUTBOX_KEY + authorId);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            connection.zSetCommands().zAdd(key, time, bytes(blogId.toString()));
+            connection.zSetCommands().zRemRange(key, 0, -outboxSize - 1L);
+            return null;
+        });
+        Map<String, String> values = new HashMap<>(4);
+        values.put(FIELD_AUTHOR_ID, authorId.toString());
+        values.put(FIELD_BLOG_ID, blogId.toString());
+        values.put(FIELD_TIME, String.valueOf(time));
+        stringRedisTemplate.opsForStream().add(StreamRecords.newRecord().in(FEED_STREAM_KEY).ofMap(values));
+    }
+
+    /**
+     * 标记或取消大V
+     *
+     * @param authorId 作者id
+     * @param bigV     是否大V
+     */
+    public void markBigV(Long authorId, boolean bigV) {
+        if (bigV) {
+            stringRedisTemplate.opsForSet().add(FEED_BIGV_KEY, authorId.toString());
+        } else {
+            stringRedisTemplate.opsForSet().remove(FEED_BIGV_KEY, authorId.toString());
+        }
+    }
+
+    public boolean isBigV(Long authorId) {
+        return Boolean.TRUE.equals(stringRedisTemplate.opsForSet().isMember(FEED_BIGV_KEY, authorId.toString()));
+    }
+
+    /**
+     * 筛选活跃用户 一次管道查询
+     *
+     * @param userIds 用户id
+     * @return 活跃期内阅读过feed的用户
+     */
+    public List<Long> filterActive(List<Long> userIds) {
+        if (userIds.isEmpty()) {
+            return userIds;
+        }
+        byte[] key = bytes(FEED_ACTIVE_KEY);
+        List<Object> scores = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Long userId : userIds) {
+                connection.zSetCommands().zScore(key, bytes(userId.toString()));
+            }
+            return null;
+        });
+        long since = System.currentTimeMillis() - activeMillis;
+        List<Long> active = new ArrayList<>(userIds.size());
+        for (int i = 0; i < userIds.size(); i++) {
+            Object score = scores.get(i);
+            if (score != null && ((Double) score) >= since) {
+                active.add(userIds.get(i));
+            }
+        }
+        return active;
+    }
+
+    /**
+     * 推送到收件箱并裁剪到inboxSize条 一次管道写入
+     *
+     * @param userIds 收件人
+     * @param blogId  博客id
+     * @param time    发布时间(毫秒)
+     */
+    public void push(List<Long> userIds, Long blogId, long time) {
+        if (userIds.isEmpty()) {
+            return;
+        }
+        byte[] member = bytes(blogId.toString());
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Long userId : userIds) {
+                byte[] key = bytes(FEED_KEY + userId);
+                connection.zSetCommands().zAdd(key, time, member);
+                connection.zSetCommands().zRemRange(key, 0, -inboxSize - 1L);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 推送多篇博客到收件箱并裁剪到inboxSize条 一次管道写入
+     *
+     * @param userIds 收件人
+     * @param posts   博客id和发布时间
+     */
+    public void push(List<Long> userIds, Set<ZSetOperations.TypedTuple<String>> posts) {
+        if (userIds.isEmpty() || posts.isEmpty()) {
+            return;
+        }
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Long userId : userIds) {
+                byte[] key = bytes(FEED_KEY + userId);
+                for (ZSetOperations.TypedTuple<String> post : posts) {
+                    connection.zSetCommands().zAdd(key, post.getScore(), bytes(post.getValue()));
+                }
+                connection.zSetCommands().zRemRange(key, 0, -inboxSize - 1L);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 作者发件箱中最近的inboxSize篇博客 取消大V时补推给粉丝 否则大V期间发布的博客会从粉丝的feed中消失
+     *
+     * @param authorId 作者id
+     * @return 博客id和发布时间
+     */
+    public Set<ZSetOperations.TypedTuple<String>> recentPosts(Long authorId) {
+        Set<ZSetOperations.TypedTuple<String>> posts = stringRedisTemplate.opsForZSet()
+                .reverseRangeWithScores(FEED_OUTBOX_KEY + authorId, 0, inboxSize - 1L);
+        return posts == null ? Collections.emptySet() : posts;
+    }
+
+    /**
+     * 记录阅读时间 不活跃(或从未阅读)的用户先从关注作者的发件箱补齐收件箱
+     *
+     * @param userId 用户id
+     */
+    public void touch(Long userId) {
+        long now = System.currentTimeMillis();
+        Double lastRead = stringRedisTemplate.opsForZSet().score(FEED_ACTIVE_KEY, userId.toString());
+        if (lastRead == null || lastRead < now - activeMillis) {
+            backfill(userId, lastRead == null ? 0 : lastRead.longValue());
+        }
+        stringRedisTemplate.opsForZSet().add(FEED_ACTIVE_KEY, userId.toString(), now);
+    }
+
+    /**
+     * 把关注作者在since之后发布的博客补到收件箱 每个作者最多backfillSize条
+     */
+    private void backfill(Long userId, long since) {
+        Set<String> authorIds = stringRedisTemplate.opsForSet().members(FOLLOWS_KEY + userId);
+        if (authorIds == null || authorIds.isEmpty()) {
+            return;
+        }
+        RedisZSetCommands.Range range = RedisZSetCommands.Range.range().gt(since);
+        RedisZSetCommands.Limit limit = RedisZSetCommands.Limit.limit().count(backfillSize);
+        List<Object> outboxes = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (String authorId : authorIds) {
+                connection.zSetCommands().zRevRangeByScoreWithScores(bytes(FEED_OUTBOX_KEY + authorId), range, limit);
+            }
+            return null;
+        });
+        Set<ZSetOperations.TypedTuple<String>> tuples = new HashSet<>();
+        for (Object outbox : outboxes) {
+            for (Object tuple : (Set<?>) outbox) {
+                ZSetOperations.TypedTuple<?> typedTuple = (ZSetOperations.TypedTuple<?>) tuple;
+                tuples.add(new DefaultTypedTuple<>(String.valueOf(typedTuple.getValue()), typedTuple.getScore()));
+            }
+        }
+        if (!tuples.isEmpty()) {
+            stringRedisTemplate.opsForZSet().add(FEED_KEY + userId, tuples);
+            stringRedisTemplate.opsForZSet().removeRange(FEED_KEY + userId, 0, -inboxSize - 1L);
+            log.debug("补齐收件箱 userId:{} 数量:{}", userId, tuples.size());
+        }
+    }
+
+    /**
+     * 读取一页feed 收件箱和关注的大V发件箱合并 按分数倒序(分数相同时按博客id字符串倒序 与redis的顺序一致)
+     * 语义同 ZREVRANGEBYSCORE key max (min LIMIT offset count
+     *
+     * @param userId 用户id
+     * @param max    最大分数(上一页的最小时间)
+     * @param min    最小分数(不包含) 收件箱被裁剪过时为裁剪边界 边界及之前的博客从数据库拉取
+     * @param offset 跳过的条数(上一页中分数等于max的数量)
+     * @param count  每页数量
+     * @return 博客id和分数
+     */
+    public List<ZSetOperations.TypedTuple<String>> read(Long userId, long max, long min, int offset, int count) {
+        List<String> keys = new ArrayList<>();
+        keys.add(FEED_KEY + userId);
+        Set<String> bigVs = stringRedisTemplate.opsForSet().intersect(FOLLOWS_KEY + userId, FEED_BIGV_KEY);
+        if (bigVs != null) {
+            bigVs.forEach(authorId -> keys.add(FEED_OUTBOX_KEY + authorId));
+        }
+        //每个来源都取offset+count条 合并后再跳过offset条
+        RedisZSetCommands.Range range = RedisZSetCommands.Range.range().gt(min).lte(max);
+        RedisZSetCommands.Limit limit = RedisZSetCommands.Limit.limit().count(offset + count);
+        List<Object> sources = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (String key : keys) {
+                connection.zSetCommands().zRevRangeByScoreWithScores(bytes(key), range, limit);
+            }
+            return null;
+        });
+        //同一篇博客可能同时在收件箱和发件箱中(作者成为大V之前推送过)
+        Map<String, ZSetOperations.TypedTuple<String>> merged = new HashMap<>();
+        for (Object source : sources) {
+            for (Object tuple : (Set<?>) source) {
+                ZSetOperations.TypedTuple<?> typedTuple = (ZSetOperations.TypedTuple<?>) tuple;
+                String blogId = String.valueOf(typedTuple.getValue());
+                merged.putIfAbsent(blogId, new DefaultTypedTuple<>(blogId, typedTuple.getScore()));
+            }
+        }
+        List<ZSetOperations.TypedTuple<String>> sorted = new ArrayList<>(merged.values());
+        sorted.sort(Comparator.<ZSetOperations.TypedTuple<String>>comparingDouble(ZSetOperations.TypedTuple::getScore)
+                .thenComparing(ZSetOperations.TypedTuple::getValue)
+                .reversed());
+        if (sorted.size() <= offset) {
+            return Collections.emptyList();
+        }
+        return sorted.subList(offset, Math.min(sorted.size(), offset + count));
+    }
+
+    /**
+     * 收件箱的裁剪边界 分数小于该值的博客已经不在收件箱中
+     *
+     * @param userId 用户id
+     * @return 收件箱未满(没有被裁剪过)时返回null
+     */
+    public Double trimBoundary(Long userId) {
+        byte[] key = bytes(FEED_KEY + userId);
+        List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            connection.zSetCommands().zCard(key);
+            connection.zSetCommands().zRangeWithScores(key, 0, 0);
+            return null;
+        });
+        Long size = (Long) results.get(0);
+        Set<?> oldest = (Set<?>) results.get(1);
+        if (size == null || size < inboxSize || oldest == null || oldest.isEmpty()) {
+            return null;
+        }
+        return ((ZSetOperations.TypedTuple<?>) oldest.iterator().next()).getScore();
+    }
+
+    /**
+     * 关注的作者
+     *
+     * @param userId 用户id
+     * @return 作者id
+     */
+    public List<Long> followings(Long userId) {
+        Set<String> members = stringRedisTemplate.opsForSet().members(FOLLOWS_KEY + userId);
+        List<Long> authorIds = new ArrayList<>();
+        if (members != null) {
+            members.forEach(member -> authorIds.add(Long.valueOf(member)));
+        }
+        return authorIds;
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,218 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.Blog;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.DefaultTuple;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneId;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 热门博客排行
+ * <p>
+ * blog:hot:liked 博客id -> 点赞数 点赞/取消点赞时增量维护
+ * blog:hot:time 博客id -> 发布时间(毫秒) 发布时写入
+ * blog:hot:rank 博客id -> 热度 定时按 点赞数/(发布小时数+2)^gravity 计算(类似Hacker News) 越新的博客权重越高
+ * 候选集为最近一段时间发布的博客和点赞数最多的一批博客 计算结果写入临时key后RENAME 读取方不会看到写了一半的排行
+ * gravity为0时不衰减 直接按点赞数排行
+ * 启动时由缓存预热从tb_blog补写redis中没有的博客(ZADD NX 不覆盖线上增量维护的点赞数) 之后读取热门博客不再访问数据库
+ *
+ * @author CHEN
+ * @date 2022/11/08
+ */
+@Slf4j
+@Component
+public class HotBlogClient {
+    private static final String LOCK_KEY = CACHE_LOCK_KEY + "blog:hot";
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final RedissonClient redissonClient;
+    private final double gravity;
+    private final long windowMillis;
+    private final int candidateSize;
+
+    public HotBlogClient(StringRedisTemplate stringRedisTemplate
+            , RedissonClient redissonClient
+            , @Value("${hmdp.blog.hot.gravity:1.8}") double gravity
+            , @Value("${hmdp.blog.hot.window-days:7}") long windowDays
+            , @Value("${hmdp.blog.hot.candidate-size:1000}") int candidateSize) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.redissonClient = redissonClient;
+        this.gravity = gravity;
+        this.windowMillis = TimeUnit.DAYS.toMillis(windowDays);
+        this.candidateSize = candidateSize;
+    }
+
+    /**
+     * 发布博客
+     *
+     * @param blogId 博客id
+     * @param time   发布时间(毫秒)
+     */
+    public void onPublish(Long blogId, long time) {
+        byte[] member = bytes(blogId.toString());
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            connection.zSetCommands().zAdd(bytes(BLOG_HOT_LIKED_KEY), 0, member, RedisZSetCommands.ZAddArgs.ifNotExists());
+            connection.zSetCommands().zAdd(bytes(BLOG_HOT_TIME_KEY), time, member);
+            return null;
+        });
+    }
+
+    /**
+     * 点赞数变化
+     *
+     * @param blogId 博客id
+     * @param delta  1点赞 -1取消点赞
+     */
+    public void onLike(Long blogId, int delta) {
+        stringRedisTemplate.opsForZSet().incrementScore(BLOG_HOT_LIKED_KEY, blogId.toString(), delta);
+    }
+
+    /**
+     * 移除已删除的博客
+     *
+     * @param blogIds 博客id
+     */
+    public void remove(Collection<Long> blogIds) {
+        if (blogIds.isEmpty()) {
+            return;
+        }
+        byte[][] values = blogIds.stream().map(id -> bytes(id.toString())).toArray(byte[][]::new);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            connection.zSetCommands().zRem(bytes(BLOG_HOT_LIKED_KEY), values);
+            connection.zSetCommands().zRem(bytes(BLOG_HOT_TIME_KEY), values);
+            connection.zSetCommands().zRem(bytes(BLOG_HOT_RANK_KEY), values);
+            return null;
+        });
+    }
+
+    /**
+     * 按数据库中的点赞数和发布时间写入 用于启动时初始化
+     * 只写入不存在的博客 每次重启都会执行 已有的点赞数由点赞时增量维护 不能用数据库中的值覆盖
+     *
+     * @param blogs 博客(需要id liked createTime)
+     */
+    public void seed(List<Blog> blogs) {
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Blog blog : blogs) {
+                byte[] member = bytes(blog.getId().toString());
+                int liked = blog.getLiked() == null ? 0 : blog.getLiked();
+                connection.zSetCommands().zAdd(bytes(BLOG_HOT_LIKED_KEY), liked, member
+                        , RedisZSetCommands.ZAddArgs.ifNotExists());
+                if (blog.getCreateTime() != null) {
+                    long time = blog.getCreateTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+                    connection.zSetCommands().zAdd(bytes(BLOG_HOT_TIME_KEY), time, member
+                            , RedisZSetCommands.ZAddArgs.ifNotExists());
+                }
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 分页查询热门博客id
+     *
+     * @param current  页码 从1开始
+     * @param pageSize 每页数量
+     * @return 按热度倒序排列的博客id
+     */
+    public List<Long> page(int current, int pageSize) {
+        long start = (long) (Math.max(current, 1) - 1) * pageSize;
+        String key = gravity > 0 ? BLOG_HOT_RANK_KEY : BLOG_HOT_LIKED_KEY;
+        Set<String> members = stringRedisTemplate.opsForZSet().reverseRange(key, start, start + pageSize - 1);
+        if (start == 0 && (members == null || members.isEmpty()) && gravity > 0) {
+            //热度排行尚未计算 按点赞数返回
+            members = stringRedisTemplate.opsForZSet().reverseRange(BLOG_HOT_LIKED_KEY, 0, pageSize - 1);
+        }
+        List<Long> ids = new ArrayList<>(pageSize);
+        if (members != null) {
+            members.forEach(member -> ids.add(Long.valueOf(member)));
+        }
+        return ids;
+    }
+
+    /**
+     * 重新计算热度排行
+     */
+    @Scheduled(fixedDelayString = "${hmdp.blog.hot.interval:60000}")
+    public void rebuildRank() {
+        if (gravity <= 0) {
+            return;
+        }
+        RLock lock = redissonClient.getLock(LOCK_KEY);
+        if (!lock.tryLock()) {
+            //其他节点正在计算
+            return;
+        }
+        try {
+            long now = System.currentTimeMillis();
+            //候选集: 最近发布的博客 + 点赞数最多的博客
+            Set<String> candidates = new HashSet<>();
+            Set<String> recent = stringRedisTemplate.opsForZSet().rangeByScore(BLOG_HOT_TIME_KEY, now - windowMillis, Double.POSITIVE_INFINITY);
+            Set<String> top = stringRedisTemplate.opsForZSet().reverseRange(BLOG_HOT_LIKED_KEY, 0, candidateSize - 1);
+            if (recent != null) {
+                candidates.addAll(recent);
+            }
+            if (top != null) {
+                candidates.addAll(top);
+            }
+            if (candidates.isEmpty()) {
+                stringRedisTemplate.delete(BLOG_HOT_RANK_KEY);
+                return;
+            }
+            List<String> ids = new ArrayList<>(candidates);
+            List<Object> values = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (String id : ids) {
+                    connection.zSetCommands().zScore(bytes(BLOG_HOT_LIKED_KEY), bytes(id));
+                    connection.zSetCommands().zScore(bytes(BLOG_HOT_TIME_KEY), bytes(id));
+                }
+                return null;
+            });
+            Set<RedisZSetCommands.Tuple> tuples = new HashSet<>(ids.size() * 2);
+            for (int i = 0; i < ids.size(); i++) {
+                Double liked = (Double) values.get(2 * i);
+                Double time = (Double) values.get(2 * i + 1);
+                tuples.add(new DefaultTuple(bytes(ids.get(i)), score(liked, time, now)));
+            }
+            //写入临时key后整体替换
+            byte[] tmpKey = bytes(BLOG_HOT_RANK_KEY + ":tmp");
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                connection.keyCommands().del(tmpKey);
+                connection.zSetCommands().zAdd(tmpKey, tuples);
+                connection.keyCommands().rename(tmpKey, bytes(BLOG_HOT_RANK_KEY));
+                return null;
+            });
+            log.debug("热门博客排行已更新 数量:{} 耗时:{}ms", tuples.size(), System.currentTimeMillis() - now);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 热度 点赞数/(发布小时数+2)^gravity 没有发布时间的博客视为很久以前发布
+     */
+    private double score(Double liked, Double time, long now) {
+        double likes = liked == null ? 0 : Math.max(0, liked);
+        if (time == null) {
+            return 0;
+        }
+        double hours = Math.max(0, now - time) / 3600000.0;
+        return likes / Math.pow(hours + 2, gravity);
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,147 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.hash.MurmurHash;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * 热点key探测
+ * <p>
+ * 滑动窗口count-min sketch: 窗口按秒分桶 每个桶一个sketch 估算值为窗口内所有桶的估算值之和
+ * 内存固定 与key的数量无关 估算值只会偏大不会偏小
+ * 达到阈值的key记录在有界的本地缓存中 一个窗口内不再达到阈值时自动过期
+ *
+ * @author CHEN
+ * @date 2022/10/27
+ */
+@Component
+public class HotKeyDetector {
+    private static final int DEPTH = 4;
+    private static final int WIDTH = 2048;
+
+    private final Bucket[] buckets;
+    private final long threshold;
+    /**
+     * 当前的热点key key -> 窗口内估算访问次数
+     */
+    private final Cache<String, Long> hotKeys;
+
+    public HotKeyDetector(MeterRegistry meterRegistry
+            , @Value("${hmdp.cache.hot-key.window-seconds:10}") int windowSeconds
+            , @Value("${hmdp.cache.hot-key.threshold:1000}") long threshold
+            , @Value("${hmdp.cache.hot-key.maximum-size:10000}") long maximumSize) {
+        this.buckets = new Bucket[Math.max(1, windowSeconds)];
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new Bucket();
+        }
+        this.threshold = threshold;
+        this.hotKeys = Caffeine.newBuilder()
+                .expireAfterWrite(buckets.length, TimeUnit.SECONDS)
+                .maximumSize(maximumSize)
+                .build();
+        Gauge.builder("cache.hotkey.count", hotKeys, cache -> {
+            cache.cleanUp();
+            return cache.estimatedSize();
+        }).register(meterRegistry);
+    }
+
+    /**
+     * 记录一次读取
+     *
+     * @param key 关键
+     * @return 是否为热点key
+     */
+    public boolean record(String key) {
+        long second = System.currentTimeMillis() / 1000;
+        long[] hash = MurmurHash.hash128(key);
+        current(second).increment(hash);
+        //窗口内的估算值
+        long estimate = 0;
+        for (Bucket bucket : buckets) {
+            if (second - bucket.second < buckets.length) {
+                estimate += bucket.estimate(hash);
+            }
+        }
+        if (estimate < threshold) {
+            return false;
+        }
+        hotKeys.put(key, estimate);
+        return true;
+    }
+
+    /**
+     * 当前的热点key 按估算的访问次数降序
+     *
+     * @return key -> 窗口内估算访问次数
+     */
+    public Map<String, Long> hotKeys() {
+        Map<String, Long> result = new LinkedHashMap<>();
+        hotKeys.asMap().entrySet().stream()
+                .sorted((a, b) -> Long.compare(b.getValue(), a.getValue()))
+                .forEach(e -> result.put(e.getKey(), e.getValue()));
+        return Collections.unmodifiableMap(result);
+    }
+
+    public long getThreshold() {
+        return threshold;
+    }
+
+    public int getWindowSeconds() {
+        return buckets.length;
+    }
+
+    /**
+     * 获取当前秒对应的桶 桶已过期时清空复用
+     */
+    private Bucket current(long second) {
+        Bucket bucket = buckets[(int) (second % buckets.length)];
+        if (bucket.second != second) {
+            synchronized (bucket) {
+                if (bucket.second != second) {
+                    bucket.reset(second);
+                }
+            }
+        }
+        return bucket;
+    }
+
+    private static class Bucket {
+        private final AtomicIntegerArray counters = new AtomicIntegerArray(DEPTH * WIDTH);
+        private volatile long second = -1;
+
+        private void increment(long[] hash) {
+            for (int i = 0; i < DEPTH; i++) {
+                counters.incrementAndGet(index(hash, i));
+            }
+        }
+
+        private long estimate(long[] hash) {
+            int min = Integer.MAX_VALUE;
+            for (int i = 0; i < DEPTH; i++) {
+                min = Math.min(min, counters.get(index(hash, i)));
+            }
+            return min;
+        }
+
+        private void reset(long second) {
+            for (int i = 0; i < counters.length(); i++) {
+                counters.set(i, 0);
+            }
+            this.second = second;
+        }
+
+        private static int index(long[] hash, int row) {
+            return row * WIDTH + (int) (((hash[0] + row * hash[1]) & Long.MAX_VALUE) % WIDTH);
+        }
+    }
+}
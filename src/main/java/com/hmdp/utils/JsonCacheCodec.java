@@ -0,0 +1,32 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.json.JSONUtil;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * json编解码器 与原有的redis数据格式兼容
+ *
+ * @author CHEN
+ * @date 2022/10/21
+ */
+public class JsonCacheCodec implements CacheCodec {
+    @Override
+    public byte[] encode(Object value) {
+        return JSONUtil.toJsonStr(value).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public <R> R decode(byte[] bytes, Class<R> type) {
+        return JSONUtil.toBean(new String(bytes, StandardCharsets.UTF_8), type);
+    }
+
+    @Override
+    public RedisData decodeWithLogicalExpire(byte[] bytes, Class<?> type) {
+        //先解析成JSONObject 再转换成目标类型
+        RedisData redisData = JSONUtil.toBean(new String(bytes, StandardCharsets.UTF_8), RedisData.class);
+        redisData.setData(BeanUtil.toBean(redisData.getData(), type));
+        return redisData;
+    }
+}
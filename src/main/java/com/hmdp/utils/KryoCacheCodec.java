@@ -0,0 +1,87 @@
+package com.hmdp.utils;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.esotericsoftware.kryo.util.Pool;
+import com.hmdp.dto.UserDTO;
+import com.hmdp.entity.Blog;
+import com.hmdp.entity.Shop;
+import com.hmdp.entity.ShopType;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+
+/**
+ * kryo二进制编解码器
+ * <p>
+ * 常用类型使用固定注册id 只写入一个变长整数而不是类名 所有节点的注册顺序必须一致
+ * 新增类型只能追加id 不能修改已有的id
+ *
+ * @author CHEN
+ * @date 2022/10/21
+ */
+public class KryoCacheCodec implements CacheCodec {
+    /**
+     * kryo实例非线程安全 使用池复用
+     */
+    private final Pool<Kryo> kryoPool = new Pool<Kryo>(true, false, 64) {
+        @Override
+        protected Kryo create() {
+            Kryo kryo = new Kryo();
+            //未注册的类型写入类名 保证任意对象都可以缓存
+            kryo.setRegistrationRequired(false);
+            //缓存对象不存在循环引用 关闭引用追踪减少体积
+            kryo.setReferences(false);
+            kryo.register(RedisData.class, 100);
+            kryo.register(LocalDateTime.class, 101);
+            kryo.register(ArrayList.class, 102);
+            kryo.register(Shop.class, 110);
+            kryo.register(ShopType.class, 111);
+            kryo.register(Blog.class, 112);
+            kryo.register(UserDTO.class, 113);
+            return kryo;
+        }
+    };
+    private final Pool<Output> outputPool = new Pool<Output>(true, false, 64) {
+        @Override
+        protected Output create() {
+            return new Output(1024, -1);
+        }
+    };
+
+    @Override
+    public byte[] encode(Object value) {
+        Kryo kryo = kryoPool.obtain();
+        Output output = outputPool.obtain();
+        try {
+            output.reset();
+            kryo.writeClassAndObject(output, value);
+            return output.toBytes();
+        } finally {
+            outputPool.free(output);
+            kryoPool.free(kryo);
+        }
+    }
+
+    @Override
+    public <R> R decode(byte[] bytes, Class<R> type) {
+        Kryo kryo = kryoPool.obtain();
+        try {
+            return type.cast(kryo.readClassAndObject(new Input(bytes)));
+        } finally {
+            kryoPool.free(kryo);
+        }
+    }
+
+    @Override
+    public RedisData decodeWithLogicalExpire(byte[] bytes, Class<?> type) {
+        //写入时已记录data的真实类型 一次解码即可得到目标对象
+        RedisData redisData = decode(bytes, RedisData.class);
+        Object data = redisData.getData();
+        if (data != null && !type.isInstance(data)) {
+            throw new ClassCastException("缓存数据类型不匹配: " + data.getClass().getName());
+        }
+        return redisData;
+    }
+}
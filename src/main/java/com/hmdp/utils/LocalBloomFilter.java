@@ -0,0 +1,127 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.hash.MurmurHash;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 本地布隆过滤器 线程安全
+ * <p>
+ * 根据预计插入数量和期望误判率计算位数组大小和哈希函数个数 使用murmur3双重哈希生成k个位置
+ *
+ * @author CHEN
+ * @date 2022/10/23
+ */
+public class LocalBloomFilter {
+    private final AtomicLongArray bits;
+    private final long bitSize;
+    private final int hashFunctions;
+    private final long expectedInsertions;
+    private final double expectedFpp;
+    /**
+     * 已置位的位数
+     */
+    private final LongAdder bitCount = new LongAdder();
+    /**
+     * 插入次数(包含重复插入)
+     */
+    private final LongAdder insertions = new LongAdder();
+
+    public LocalBloomFilter(long expectedInsertions, double expectedFpp) {
+        this.expectedInsertions = Math.max(1L, expectedInsertions);
+        this.expectedFpp = expectedFpp;
+        //m = -n*ln(p)/(ln2)^2
+        long m = (long) (-this.expectedInsertions * Math.log(expectedFpp) / (Math.log(2) * Math.log(2)));
+        this.bits = new AtomicLongArray((int) ((Math.max(64L, m) + 63) >>> 6));
+        this.bitSize = (long) bits.length() << 6;
+        //k = m/n*ln2
+        this.hashFunctions = Math.max(1, (int) Math.round((double) bitSize / this.expectedInsertions * Math.log(2)));
+    }
+
+    /**
+     * 添加元素
+     *
+     * @param value 价值
+     */
+    public void put(Object value) {
+        long[] hash = MurmurHash.hash128(value.toString());
+        for (int i = 0; i < hashFunctions; i++) {
+            if (setBit(index(hash, i))) {
+                bitCount.increment();
+            }
+        }
+        insertions.increment();
+    }
+
+    /**
+     * 元素可能存在 返回false时一定不存在
+     *
+     * @param value 价值
+     * @return boolean
+     */
+    public boolean mightContain(Object value) {
+        long[] hash = MurmurHash.hash128(value.toString());
+        for (int i = 0; i < hashFunctions; i++) {
+            long index = index(hash, i);
+            if ((bits.get((int) (index >>> 6)) & (1L << index)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 占用内存字节数
+     *
+     * @return long
+     */
+    public long memoryBytes() {
+        return (long) bits.length() << 3;
+    }
+
+    /**
+     * 根据已置位比例估算的当前误判率
+     *
+     * @return double
+     */
+    public double currentFpp() {
+        return Math.pow((double) bitCount.sum() / bitSize, hashFunctions);
+    }
+
+    public double getExpectedFpp() {
+        return expectedFpp;
+    }
+
+    public long getExpectedInsertions() {
+        return expectedInsertions;
+    }
+
+    public long getInsertions() {
+        return insertions.sum();
+    }
+
+    private long index(long[] hash, int i) {
+        return ((hash[0] + i * hash[1]) & Long.MAX_VALUE) % bitSize;
+    }
+
+    /**
+     * 置位
+     *
+     * @param index 位置
+     * @return 是否由0变为1
+     */
+    private boolean setBit(long index) {
+        int i = (int) (index >>> 6);
+        long mask = 1L << index;
+        while (true) {
+            long old = bits.get(i);
+            if ((old & mask) != 0) {
+                return false;
+            }
+            if (bits.compareAndSet(i, old, old | mask)) {
+                return true;
+            }
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.thread.ThreadFactoryBuilder;
+import com.hmdp.dto.Result;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.ORDER_STATUS_KEY;
+import static com.hmdp.utils.RedisConstants.ORDER_STATUS_TTL;
+
+/**
+ * 订单状态
+ * <p>
+ * 秒杀脚本接受请求时写入PENDING 消费者落库后写入CREATED 转入死信队列时写入FAILED 超时未支付取消后写入CANCELLED
+ * 每128个连续的订单id共用一个hash order:status:{orderId>>7} 小hash使用紧凑编码 节省内存
+ * 查询接口长轮询: 状态仍为PENDING时挂起请求 定时批量查询所有挂起的订单 状态变化或超时后返回
+ * 轮询使用单独的线程 不和其他定时任务共用调度线程 不会被耗时的任务拖慢
+ *
+ * @author CHEN
+ * @date 2022/11/03
+ */
+@Slf4j
+@Component
+public class OrderStatusClient implements DisposableBean {
+    public static final String PENDING = "0";
+    public static final String CREATED = "1";
+    public static final String FAILED = "2";
+    public static final String CANCELLED = "3";
+    private static final int BUCKET_BITS = 7;
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final Timer latencyTimer;
+    private final long pollTimeoutMillis;
+    /**
+     * 挂起的查询 订单id -> 等待结果的请求
+     */
+    private final Map<Long, List<DeferredResult<Result>>> waiters = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService pollExecutor = Executors.newSingleThreadScheduledExecutor(
+            ThreadFactoryBuilder.create().setNamePrefix("order-status-poll-").setDaemon(true).build());
+
+    public OrderStatusClient(StringRedisTemplate stringRedisTemplate
+            , MeterRegistry meterRegistry
+            , @Value("${hmdp.order.status.poll-timeout:10000}") long pollTimeoutMillis
+            , @Value("${hmdp.order.status.poll-interval:100}") long pollIntervalMillis) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.latencyTimer = meterRegistry.timer("order.e2e.latency");
+        this.pollTimeoutMillis = pollTimeoutMillis;
+        pollExecutor.scheduleWithFixedDelay(this::pollWaiters, pollIntervalMillis, pollIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 订单状态所在的hash
+     *
+     * @param orderId 订单id
+     * @return {@link String}
+     */
+    public static String statusKey(Long orderId) {
+        return ORDER_STATUS_KEY + (orderId >> BUCKET_BITS);
+    }
+
+    public void markPending(Long orderId) {
+        mark(Collections.singletonList(orderId), PENDING);
+    }
+
+    public void markFailed(Long orderId) {
+        mark(Collections.singletonList(orderId), FAILED);
+    }
+
+    public void markCancelled(Collection<Long> orderIds) {
+        if (!orderIds.isEmpty()) {
+            mark(orderIds, CANCELLED);
+        }
+    }
+
+    /**
+     * 标记已落库 并记录从接受请求到落库的耗时
+     *
+     * @param acceptMillis 订单id -> 接受请求的时间(消息id中的毫秒时间戳)
+     */
+    public void markCreated(Map<Long, Long> acceptMillis) {
+        if (acceptMillis.isEmpty()) {
+            return;
+        }
+        mark(acceptMillis.keySet(), CREATED);
+        long now = System.currentTimeMillis();
+        acceptMillis.values().forEach(accept -> latencyTimer.record(Math.max(0, now - accept), TimeUnit.MILLISECONDS));
+        //本节点挂起的查询直接返回
+        acceptMillis.keySet().forEach(orderId -> complete(orderId, CREATED));
+    }
+
+    private void mark(Collection<Long> orderIds, String status) {
+        byte[] value = status.getBytes(StandardCharsets.UTF_8);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Long orderId : orderIds) {
+                byte[] key = statusKey(orderId).getBytes(StandardCharsets.UTF_8);
+                connection.hashCommands().hSet(key, orderId.toString().getBytes(StandardCharsets.UTF_8), value);
+                connection.keyCommands().expire(key, ORDER_STATUS_TTL);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 查询订单状态
+     *
+     * @param orderId 订单id
+     * @return 状态 不存在(过期或从未接受)时为null
+     */
+    public String get(Long orderId) {
+        Object status = stringRedisTemplate.opsForHash().get(statusKey(orderId), orderId.toString());
+        return status == null ? null : status.toString();
+    }
+
+    /**
+     * 长轮询订单状态 已有最终状态时立即返回 否则等待状态变化或超时
+     *
+     * @param orderId 订单id
+     * @return {@link DeferredResult}
+     */
+    public DeferredResult<Result> await(Long orderId) {
+        DeferredResult<Result> result = new DeferredResult<>(pollTimeoutMillis, Result.ok(statusName(PENDING)));
+        String status = get(orderId);
+        if (!PENDING.equals(status)) {
+            result.setResult(Result.ok(statusName(status)));
+            return result;
+        }
+        List<DeferredResult<Result>> list = waiters.computeIfAbsent(orderId, id -> new CopyOnWriteArrayList<>());
+        list.add(result);
+        result.onCompletion(() -> waiters.computeIfPresent(orderId, (id, l) -> {
+            l.remove(result);
+            return l.isEmpty() ? null : l;
+        }));
+        return result;
+    }
+
+    /**
+     * 批量查询所有挂起的订单 异常时只记录日志 否则后续的轮询会被取消
+     */
+    private void pollWaiters() {
+        if (waiters.isEmpty()) {
+            return;
+        }
+        try {
+            pollStatuses();
+        } catch (Exception e) {
+            log.error("轮询订单状态失败 挂起数量:{}", waiters.size(), e);
+        }
+    }
+
+    private void pollStatuses() {
+        List<Long> orderIds = new ArrayList<>(waiters.keySet());
+        List<Object> statuses = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Long orderId : orderIds) {
+                connection.hashCommands().hGet(statusKey(orderId).getBytes(StandardCharsets.UTF_8)
+                        , orderId.toString().getBytes(StandardCharsets.UTF_8));
+            }
+            return null;
+        });
+        for (int i = 0; i < orderIds.size(); i++) {
+            Object status = statuses.get(i);
+            if (status != null && !PENDING.equals(status.toString())) {
+                complete(orderIds.get(i), status.toString());
+            }
+        }
+    }
+
+    private void complete(Long orderId, String status) {
+        List<DeferredResult<Result>> list = waiters.remove(orderId);
+        if (list != null) {
+            list.forEach(result -> result.setResult(Result.ok(statusName(status))));
+        }
+    }
+
+    @Override
+    public void destroy() {
+        pollExecutor.shutdown();
+    }
+
+    private static String statusName(String status) {
+        if (status == null) {
+            return "UNKNOWN";
+        }
+        switch (status) {
+            case PENDING:
+                return "PENDING";
+            case CREATED:
+                return "CREATED";
+            case FAILED:
+                return "FAILED";
+            case CANCELLED:
+                return "CANCELLED";
+            default:
+                return "UNKNOWN";
+        }
+    }
+}
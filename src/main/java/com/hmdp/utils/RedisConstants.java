@@ -10,15 +10,45 @@ public class RedisConstants {
 
     public static final Long CACHE_SHOP_TTL = 30L;
     public static final String CACHE_SHOP_KEY = "cache:shop:";
+    public static final Long CACHE_BLOG_TTL = 30L;
+    public static final String CACHE_BLOG_KEY = "cache:blog:";
+    public static final Long CACHE_USER_TTL = 30L;
+    public static final String CACHE_USER_KEY = "cache:user:";
 
     public static final String LOCK_SHOP_KEY = "lock:shop:";
+    public static final String CACHE_LOCK_KEY = "lock:";
     public static final Long LOCK_SHOP_TTL = 10L;
 
     public static final String CACHE_TYPE_KEY = "cache:type";
+    public static final String CACHE_INVALIDATE_CHANNEL = "cache:invalidate";
+    public static final String BLOOM_FILTER_CHANNEL = "bloom:add";
+    public static final String BLOOM_FILTER_STREAM_KEY = "bloom:added";
 
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    public static final String SECKILL_ORDER_KEY = "seckill:order:";
+    public static final String SECKILL_SHARDS_KEY = "seckill:shards:";
+    public static final String SECKILL_VOUCHER_KEY = "seckill:voucher:";
+    public static final String SECKILL_PENDING_KEY = "seckill:pending:";
+    public static final String SECKILL_SOLD_OUT_CHANNEL = "seckill:sold-out";
+    public static final String ORDER_STREAM_KEY = "stream.orders";
+    public static final String ORDER_STREAM_GROUP = "g1";
+    public static final String ORDER_DLQ_KEY = "stream.orders.dlq";
+    public static final String ORDER_STATUS_KEY = "order:status:";
+    public static final Long ORDER_STATUS_TTL = 86400L;
+    public static final String ORDER_EXPIRE_KEY = "order:expire";
     public static final String BLOG_LIKED_KEY = "blog:liked:";
+    public static final String BLOG_HOT_LIKED_KEY = "blog:hot:liked";
+    public static final String BLOG_HOT_TIME_KEY = "blog:hot:time";
+    public static final String BLOG_HOT_RANK_KEY = "blog:hot:rank";
     public static final String FEED_KEY = "feed:";
+    public static final String FEED_OUTBOX_KEY = "feed:outbox:";
+    public static final String FEED_BIGV_KEY = "feed:bigv";
+    public static final String FEED_ACTIVE_KEY = "feed:active";
+    public static final String FEED_STREAM_KEY = "stream.feed";
+    public static final String FEED_STREAM_GROUP = "g1";
+    public static final String FEED_DLQ_KEY = "stream.feed.dlq";
+    public static final String FEED_FANOUT_PROGRESS_KEY = "feed:fanout:progress";
+    public static final String FOLLOWS_KEY = "follows:";
     public static final String SHOP_GEO_KEY = "shop:geo:";
     public static final String USER_SIGN_KEY = "sign:";
 }
@@ -1,21 +1,42 @@
 package com.hmdp.utils;
 
+import cn.hutool.core.thread.ThreadFactoryBuilder;
+import cn.hutool.core.util.IdUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Component;
 
-import javax.annotation.Resource;
+import javax.annotation.PostConstruct;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * redis ID生成器
+ * <p>
+ * redis: 每次INCR icr:{prefix}:{yyyyMMdd} 秒级时间戳<<32|序列号
+ * segment: 格式同redis模式 每次INCRBY预留一段序列号 在本地通过AtomicLong无锁分配 用掉一部分后异步预取下一段
+ * 跨天时丢弃旧号段 保证同一秒内不会和新一天的序列号重复
+ * snowflake: 不访问redis 毫秒时间戳<<22|机器id<<12|序列号
+ * 机器id未配置时从redis领取租约 SET icr:worker:{id} 实例标识 NX PX 依次尝试0~1023 都被占用时启动失败
+ * 租约定时续期 停机时释放 续期失败超过租约时间后拒绝生成id 避免与领取了同一机器id的实例重复
+ * 不同模式生成的id格式不同 不要在集群运行中切换模式
  *
  * @author CHEN
  * @date 2022/10/09
  */
+@Slf4j
 @Component
-public class RedisIdWorker {
+public class RedisIdWorker implements DisposableBean {
     /**
      * 初始时间戳
      */
@@ -24,9 +45,131 @@ public class RedisIdWorker {
      * 序列号位数
      */
     private static final Integer COUNT_BITS = 32;
+    private static final long SECONDS_PER_DAY = 86400L;
+    private static final DateTimeFormatter DAY_FORMATTER = DateTimeFormatter.ofPattern("yyyyMMdd");
+    /**
+     * snowflake 机器id位数和序列号位数
+     */
+    private static final int WORKER_BITS = 10;
+    private static final int SEQUENCE_BITS = 12;
+    private static final long MAX_WORKER_ID = (1L << WORKER_BITS) - 1;
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+    private static final long BEGIN_MILLIS = BEGIN_TIMESTAMP * 1000;
+    /**
+     * 允许等待的时钟回拨毫秒数
+     */
+    private static final long MAX_BACKWARD_MILLIS = 5L;
+    private static final String WORKER_KEY = "icr:worker:";
+    private static final DefaultRedisScript<Long> RENEW_SCRIPT;
+    private static final DefaultRedisScript<Long> RELEASE_SCRIPT;
 
-    @Resource
-    private StringRedisTemplate stringRedisTemplate;
+    static {
+        RENEW_SCRIPT = new DefaultRedisScript<>();
+        RENEW_SCRIPT.setLocation(new ClassPathResource("worker_renew.lua"));
+        RENEW_SCRIPT.setResultType(Long.class);
+        RELEASE_SCRIPT = new DefaultRedisScript<>();
+        RELEASE_SCRIPT.setLocation(new ClassPathResource("unlock.lua"));
+        RELEASE_SCRIPT.setResultType(Long.class);
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final String mode;
+    private final long step;
+    private long workerId;
+    /**
+     * 机器id租约时间(毫秒)
+     */
+    private final long leaseMillis;
+    /**
+     * 租约标识 为null时表示机器id是配置的 不需要租约
+     */
+    private String leaseOwner;
+    /**
+     * 租约到期时间 超过后拒绝生成id
+     */
+    private volatile long leaseDeadline = Long.MAX_VALUE;
+    private ScheduledExecutorService renewExecutor;
+    /**
+     * segment 业务前缀 -> 号段
+     */
+    private final Map<String, SegmentBuffer> buffers = new ConcurrentHashMap<>();
+    private final ExecutorService prefetchExecutor = Executors.newSingleThreadExecutor(
+            ThreadFactoryBuilder.create().setNamePrefix("id-segment-prefetch-").setDaemon(true).build());
+    /**
+     * snowflake 上次生成id的毫秒时间戳和序列号
+     */
+    private long lastMillis = -1L;
+    private long sequence;
+
+    public RedisIdWorker(StringRedisTemplate stringRedisTemplate
+            , @Value("${hmdp.id.mode:segment}") String mode
+            , @Value("${hmdp.id.step:1000}") long step
+            , @Value("${hmdp.id.worker-id:-1}") long workerId
+            , @Value("${hmdp.id.worker-lease:30000}") long leaseMillis) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.mode = mode;
+        this.step = Math.max(1, step);
+        this.workerId = workerId;
+        this.leaseMillis = leaseMillis;
+    }
+
+    @PostConstruct
+    public void init() {
+        if (!"snowflake".equals(mode)) {
+            return;
+        }
+        if (workerId < 0) {
+            //未配置机器id 从redis领取
+            acquireWorkerId();
+        }
+        if (workerId > MAX_WORKER_ID) {
+            throw new IllegalStateException("机器id超出范围: " + workerId);
+        }
+        log.info("snowflake id生成器 workerId:{}", workerId);
+    }
+
+    /**
+     * 领取机器id租约 从INCR得到的位置开始依次尝试 使各实例从不同的位置开始 减少冲突
+     */
+    private void acquireWorkerId() {
+        leaseOwner = StreamClient.instanceName() + ":" + IdUtil.fastSimpleUUID();
+        Long start = stringRedisTemplate.opsForValue().increment("icr:worker");
+        for (long i = 0; i <= MAX_WORKER_ID; i++) {
+            long id = ((start == null ? 0 : start) + i) & MAX_WORKER_ID;
+            Boolean ok = stringRedisTemplate.opsForValue()
+                    .setIfAbsent(WORKER_KEY + id, leaseOwner, leaseMillis, TimeUnit.MILLISECONDS);
+            if (Boolean.TRUE.equals(ok)) {
+                workerId = id;
+                leaseDeadline = System.currentTimeMillis() + leaseMillis;
+                renewExecutor = Executors.newSingleThreadScheduledExecutor(
+                        ThreadFactoryBuilder.create().setNamePrefix("id-worker-renew-").setDaemon(true).build());
+                long interval = Math.max(1, leaseMillis / 3);
+                renewExecutor.scheduleWithFixedDelay(this::renew, interval, interval, TimeUnit.MILLISECONDS);
+                return;
+            }
+        }
+        throw new IllegalStateException("没有空闲的机器id 已有" + (MAX_WORKER_ID + 1) + "个实例");
+    }
+
+    /**
+     * 续期机器id租约 租约已被其他实例领取时不再续期 到期后拒绝生成id
+     */
+    private void renew() {
+        long begin = System.currentTimeMillis();
+        try {
+            Long ok = stringRedisTemplate.execute(RENEW_SCRIPT, Collections.singletonList(WORKER_KEY + workerId)
+                    , leaseOwner, String.valueOf(leaseMillis));
+            if (ok != null && ok == 1L) {
+                leaseDeadline = begin + leaseMillis;
+                return;
+            }
+            log.error("机器id已被其他实例领取 停止生成id workerId:{}", workerId);
+            leaseDeadline = 0;
+            renewExecutor.shutdown();
+        } catch (Exception e) {
+            log.error("机器id续期失败 workerId:{}", workerId, e);
+        }
+    }
 
     /**
      * 获取id
@@ -35,17 +178,161 @@ public class RedisIdWorker {
      * @return {@link Long}
      */
     public Long nextId(String keyPrefix) {
+        if ("snowflake".equals(mode)) {
+            return nextSnowflakeId();
+        }
         //生成时间戳
-        LocalDateTime now = LocalDateTime.now();
-        long nowSecond = now.toEpochSecond(ZoneOffset.UTC);
+        long nowSecond = LocalDateTime.now().toEpochSecond(ZoneOffset.UTC);
         long timestamp = nowSecond - BEGIN_TIMESTAMP;
         //生成序列号
-        //生成当前日期 精确到天
-        String today = now.format(DateTimeFormatter.ofPattern("yyyyMMdd"));
-        //自增长
-        Long count = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + today);
+        long count;
+        if ("segment".equals(mode)) {
+            count = buffers.computeIfAbsent(keyPrefix, SegmentBuffer::new).next(nowSecond / SECONDS_PER_DAY);
+        } else {
+            //生成当前日期 精确到天 自增长
+            Long increment = stringRedisTemplate.opsForValue().increment(dayKey(keyPrefix, nowSecond / SECONDS_PER_DAY));
+            count = increment == null ? 0 : increment;
+        }
         //拼接并返回
-        return timestamp << COUNT_BITS|count ;
+        return timestamp << COUNT_BITS | count;
+    }
+
+    private synchronized long nextSnowflakeId() {
+        long now = System.currentTimeMillis();
+        if (now >= leaseDeadline) {
+            throw new IllegalStateException("机器id租约已失效 拒绝生成id workerId:" + workerId);
+        }
+        if (now < lastMillis) {
+            //时钟回拨 短时间内等待 否则拒绝生成
+            long offset = lastMillis - now;
+            if (offset > MAX_BACKWARD_MILLIS) {
+                throw new IllegalStateException("时钟回拨" + offset + "ms 拒绝生成id");
+            }
+            now = waitUntil(lastMillis);
+        }
+        if (now == lastMillis) {
+            sequence = (sequence + 1) & SEQUENCE_MASK;
+            if (sequence == 0) {
+                //当前毫秒序列号用完
+                now = waitUntil(lastMillis + 1);
+            }
+        } else {
+            sequence = 0;
+        }
+        lastMillis = now;
+        return (now - BEGIN_MILLIS) << (WORKER_BITS + SEQUENCE_BITS) | workerId << SEQUENCE_BITS | sequence;
+    }
+
+    private static long waitUntil(long millis) {
+        long now = System.currentTimeMillis();
+        while (now < millis) {
+            Thread.yield();
+            now = System.currentTimeMillis();
+        }
+        return now;
+    }
+
+    private static String dayKey(String keyPrefix, long day) {
+        return "icr:" + keyPrefix + ":" + LocalDate.ofEpochDay(day).format(DAY_FORMATTER);
+    }
+
+    @Override
+    public void destroy() {
+        prefetchExecutor.shutdownNow();
+        if (renewExecutor != null) {
+            renewExecutor.shutdownNow();
+            //释放租约 其他实例可以立即领取
+            stringRedisTemplate.execute(RELEASE_SCRIPT, Collections.singletonList(WORKER_KEY + workerId), leaseOwner);
+        }
+    }
+
+    /**
+     * 号段 [cursor, max]
+     */
+    private static class Segment {
+        private final long day;
+        private final AtomicLong cursor;
+        private final long max;
+        /**
+         * 分配到该值时预取下一段
+         */
+        private final long prefetchAt;
+
+        private Segment(long day, long min, long max) {
+            this.day = day;
+            this.cursor = new AtomicLong(min);
+            this.max = max;
+            this.prefetchAt = min + (max - min + 1) * 2 / 10;
+        }
     }
 
+    /**
+     * 同一个业务前缀的当前号段和预取的下一段
+     */
+    private class SegmentBuffer {
+        private final String keyPrefix;
+        private volatile Segment current;
+        private volatile CompletableFuture<Segment> next;
+
+        private SegmentBuffer(String keyPrefix) {
+            this.keyPrefix = keyPrefix;
+        }
+
+        private long next(long day) {
+            while (true) {
+                Segment segment = current;
+                if (segment != null && segment.day == day) {
+                    long value = segment.cursor.getAndIncrement();
+                    if (value <= segment.max) {
+                        if (value == segment.prefetchAt) {
+                            prefetch(day);
+                        }
+                        return value;
+                    }
+                }
+                synchronized (this) {
+                    //号段用完或跨天 只有一个线程切换
+                    if (current == segment) {
+                        current = take(day);
+                    }
+                }
+            }
+        }
+
+        private void prefetch(long day) {
+            try {
+                next = CompletableFuture.supplyAsync(() -> allocate(day), prefetchExecutor);
+            } catch (RejectedExecutionException e) {
+                //已停机 用完时同步获取
+                next = null;
+            }
+        }
+
+        /**
+         * 优先使用预取的号段 预取失败或已跨天时同步获取
+         */
+        private Segment take(long day) {
+            CompletableFuture<Segment> future = next;
+            next = null;
+            if (future != null) {
+                try {
+                    Segment segment = future.join();
+                    if (segment.day == day) {
+                        return segment;
+                    }
+                } catch (CompletionException e) {
+                    log.warn("预取号段失败 同步获取 prefix:{}", keyPrefix, e);
+                }
+            }
+            return allocate(day);
+        }
+
+        private Segment allocate(long day) {
+            Long max = stringRedisTemplate.opsForValue().increment(dayKey(keyPrefix, day), step);
+            if (max == null) {
+                throw new IllegalStateException("获取号段失败 prefix:" + keyPrefix);
+            }
+            return new Segment(day, max - step + 1, max);
+        }
+    }
 }
@@ -0,0 +1,135 @@
+package com.hmdp.utils;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_SOLD_OUT_CHANNEL;
+
+/**
+ * 秒杀本地准入
+ * <p>
+ * 售罄标记: 任一节点发现售罄后通过redis发布订阅通知所有节点 之后的请求不再访问redis直接拒绝
+ * 令牌桶: 每个节点每个周期最多放行"剩余库存"个请求 超出的请求大概率抢不到 直接拒绝
+ * 定时按redis中的剩余库存重置令牌 并在库存恢复(取消订单归还库存)时清除售罄标记
+ *
+ * @author CHEN
+ * @date 2022/11/01
+ */
+@Slf4j
+@Component
+public class SeckillGate implements MessageListener {
+    private final StringRedisTemplate stringRedisTemplate;
+    private final SeckillStockClient seckillStockClient;
+    private final Counter rejectedCounter;
+    /**
+     * 已售罄的券 长时间未访问的券自动移除
+     */
+    private final Cache<Long, Boolean> soldOut = Caffeine.newBuilder()
+            .maximumSize(10000)
+            .expireAfterAccess(10, TimeUnit.MINUTES)
+            .build();
+    /**
+     * 券id -> 本周期剩余令牌 长时间未访问的券自动移除
+     */
+    private final Cache<Long, AtomicLong> tokens = Caffeine.newBuilder()
+            .maximumSize(10000)
+            .expireAfterAccess(10, TimeUnit.MINUTES)
+            .build();
+
+    public SeckillGate(StringRedisTemplate stringRedisTemplate
+            , SeckillStockClient seckillStockClient
+            , MeterRegistry meterRegistry) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.seckillStockClient = seckillStockClient;
+        this.rejectedCounter = meterRegistry.counter("seckill.gate.rejected");
+    }
+
+    /**
+     * 尝试获取准入资格
+     *
+     * @param voucherId 券id
+     * @return 是否放行
+     */
+    public boolean tryAcquire(Long voucherId) {
+        if (soldOut.getIfPresent(voucherId) != null) {
+            rejectedCounter.increment();
+            return false;
+        }
+        AtomicLong bucket = tokens.get(voucherId, id -> new AtomicLong(seckillStockClient.remainingStock(id)));
+        if (bucket.getAndUpdate(n -> n > 0 ? n - 1 : n) > 0) {
+            return true;
+        }
+        rejectedCounter.increment();
+        return false;
+    }
+
+    /**
+     * 归还令牌(重复下单等没有消耗库存的请求)
+     *
+     * @param voucherId 券id
+     */
+    public void release(Long voucherId) {
+        AtomicLong bucket = tokens.getIfPresent(voucherId);
+        if (bucket != null) {
+            bucket.incrementAndGet();
+        }
+    }
+
+    /**
+     * 标记售罄 并通知所有节点
+     *
+     * @param voucherId 券id
+     */
+    public void markSoldOut(Long voucherId) {
+        if (soldOut.asMap().putIfAbsent(voucherId, Boolean.TRUE) == null) {
+            stringRedisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, voucherId.toString());
+            log.info("秒杀券已售罄 voucherId:{}", voucherId);
+        }
+    }
+
+    /**
+     * 收到其他节点的售罄通知
+     *
+     * @param message 消息
+     * @param pattern 模式
+     */
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        Long voucherId = Long.valueOf(new String(message.getBody(), StandardCharsets.UTF_8));
+        soldOut.put(voucherId, Boolean.TRUE);
+        tokens.invalidate(voucherId);
+    }
+
+    /**
+     * 按redis中的剩余库存重置令牌和售罄标记
+     */
+    @Scheduled(fixedDelayString = "${hmdp.seckill.gate.refresh-interval:1000}")
+    public void refresh() {
+        Set<Long> voucherIds = new HashSet<>(tokens.asMap().keySet());
+        voucherIds.addAll(soldOut.asMap().keySet());
+        for (Long voucherId : voucherIds) {
+            long remaining = seckillStockClient.remainingStock(voucherId);
+            if (remaining > 0) {
+                soldOut.invalidate(voucherId);
+                tokens.get(voucherId, id -> new AtomicLong()).set(remaining);
+            } else {
+                soldOut.asMap().putIfAbsent(voucherId, Boolean.TRUE);
+                tokens.invalidate(voucherId);
+            }
+        }
+    }
+}
@@ -0,0 +1,510 @@
+package com.hmdp.utils;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.VoucherOrder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.connection.stream.StreamRecords;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.types.Expiration;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 秒杀库存
+ * <p>
+ * 未分片: seckill:stock:{voucherId} + seckill:order:{voucherId} 由seckill.lua原子完成扣库存、记录用户、发送消息
+ * 分片: 库存拆成K个子key seckill:stock:{voucherId:i} 订单集合同样拆成 seckill:order:{voucherId:i}
+ * 同一分片的两个key使用相同的hash tag 位于同一个slot 不同分片分散到不同slot/redis线程
+ * 用户按id取模固定落在一个分片 在该分片完成去重和扣减 该分片库存不足时依次到其他分片扣减
+ * 所有分片都不足时撤销去重记录 分片模式下订单消息由java发送(stream与分片不在同一个slot)
+ * 扣减库存的脚本同时在该分片的zset seckill:pending:{voucherId:i}中记录待发送订单 发送后删除
+ * 扣减后发送前宕机留下的记录由{@link #reconcilePending}补发订单消息 占住资格但还没扣减库存的记录则释放资格
+ * 秒杀时间保存在hash seckill:voucher:{voucherId}(分片时每个分片一份 与库存key在同一个slot) 在脚本中原子检查
+ *
+ * @author CHEN
+ * @date 2022/10/31
+ */
+@Slf4j
+@Component
+public class SeckillStockClient {
+    /**
+     * 扣减成功
+     */
+    public static final int SUCCESS = 0;
+    /**
+     * 库存不足
+     */
+    public static final int SOLD_OUT = 1;
+    /**
+     * 重复下单
+     */
+    public static final int DUPLICATE = 2;
+    /**
+     * 用户所在分片库存不足(仅脚本内部使用)
+     */
+    private static final int SHARD_EMPTY = 3;
+    /**
+     * 秒杀尚未开始
+     */
+    public static final int NOT_STARTED = 4;
+    /**
+     * 秒杀已经结束
+     */
+    public static final int ENDED = 5;
+    private static final String FIELD_BEGIN = "begin";
+    private static final String FIELD_END = "end";
+
+    private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
+    private static final DefaultRedisScript<Long> SECKILL_SHARD_SCRIPT;
+    private static final DefaultRedisScript<Long> SECKILL_STOCK_SCRIPT;
+
+    static {
+        SECKILL_SCRIPT = new DefaultRedisScript<>();
+        SECKILL_SCRIPT.setLocation(new ClassPathResource("seckill.lua"));
+        SECKILL_SCRIPT.setResultType(Long.class);
+        SECKILL_SHARD_SCRIPT = new DefaultRedisScript<>();
+        SECKILL_SHARD_SCRIPT.setLocation(new ClassPathResource("seckill_shard.lua"));
+        SECKILL_SHARD_SCRIPT.setResultType(Long.class);
+        SECKILL_STOCK_SCRIPT = new DefaultRedisScript<>();
+        SECKILL_STOCK_SCRIPT.setLocation(new ClassPathResource("seckill_stock.lua"));
+        SECKILL_STOCK_SCRIPT.setResultType(Long.class);
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private OrderStatusClient orderStatusClient;
+    @Value("${hmdp.seckill.stock-shards:1}")
+    private int stockShards;
+
+    /**
+     * 分片数量 创建后不再变化 本地缓存
+     */
+    private final Cache<Long, Integer> shardCountCache = Caffeine.newBuilder()
+            .maximumSize(10000)
+            .expireAfterWrite(1, TimeUnit.MINUTES)
+            .build();
+    /**
+     * 秒杀时间 券id -> [开始, 结束](毫秒) 只用于本地预先过滤 以lua脚本中的检查为准
+     */
+    private final Cache<Long, long[]> windowCache = Caffeine.newBuilder()
+            .maximumSize(10000)
+            .expireAfterWrite(1, TimeUnit.MINUTES)
+            .build();
+
+    /**
+     * 初始化秒杀库存和秒杀时间 分片数量取配置值和库存中较小的一个 保证每个分片至少有1个库存
+     *
+     * @param seckillVoucher 秒杀券
+     */
+    public void initStock(SeckillVoucher seckillVoucher) {
+        int shards = Math.max(1, Math.min(stockShards, seckillVoucher.getStock()));
+        writeStock(Collections.singletonList(seckillVoucher)
+                , Collections.singletonMap(seckillVoucher.getVoucherId(), shards), false);
+    }
+
+    /**
+     * 按已有的分片方式恢复库存 只在key不存在时写入 不覆盖正在扣减的库存 秒杀时间总是以数据库为准
+     *
+     * @param vouchers 秒杀券
+     */
+    public void restoreStock(List<SeckillVoucher> vouchers) {
+        if (vouchers.isEmpty()) {
+            return;
+        }
+        List<String> shardKeys = new ArrayList<>(vouchers.size());
+        vouchers.forEach(voucher -> shardKeys.add(SECKILL_SHARDS_KEY + voucher.getVoucherId()));
+        List<String> shardValues = stringRedisTemplate.opsForValue().multiGet(shardKeys);
+        Map<Long, Integer> shardMap = new HashMap<>(vouchers.size() * 2);
+        for (int i = 0; i < vouchers.size(); i++) {
+            String shards = shardValues == null ? null : shardValues.get(i);
+            shardMap.put(vouchers.get(i).getVoucherId(), shards == null ? 1 : Integer.parseInt(shards));
+        }
+        writeStock(vouchers, shardMap, true);
+    }
+
+    /**
+     * 通过管道写入库存和秒杀时间 分片时库存平均分配 余数分给前几个分片 每个分片各有一份秒杀时间
+     *
+     * @param vouchers 秒杀券
+     * @param shardMap 券id -> 分片数量
+     * @param ifAbsent 库存是否只在key不存在时写入
+     */
+    private void writeStock(List<SeckillVoucher> vouchers, Map<Long, Integer> shardMap, boolean ifAbsent) {
+        RedisStringCommands.SetOption option = ifAbsent
+                ? RedisStringCommands.SetOption.ifAbsent()
+                : RedisStringCommands.SetOption.upsert();
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (SeckillVoucher voucher : vouchers) {
+                Long voucherId = voucher.getVoucherId();
+                int stock = voucher.getStock();
+                int shards = shardMap.get(voucherId);
+                Map<byte[], byte[]> window = windowHash(voucher);
+                if (shards <= 1) {
+                    connection.stringCommands().set(bytes(SECKILL_STOCK_KEY + voucherId)
+                            , bytes(String.valueOf(stock)), Expiration.persistent(), option);
+                    if (window != null) {
+                        connection.hashCommands().hMSet(bytes(SECKILL_VOUCHER_KEY + voucherId), window);
+                    }
+                    continue;
+                }
+                connection.stringCommands().set(bytes(SECKILL_SHARDS_KEY + voucherId)
+                        , bytes(String.valueOf(shards)), Expiration.persistent(), option);
+                for (int i = 0; i < shards; i++) {
+                    int shardStock = stock / shards + (i < stock % shards ? 1 : 0);
+                    connection.stringCommands().set(bytes(stockKey(voucherId, i))
+                            , bytes(String.valueOf(shardStock)), Expiration.persistent(), option);
+                    if (window != null) {
+                        connection.hashCommands().hMSet(bytes(voucherKey(voucherId, i)), window);
+                    }
+                }
+            }
+            return null;
+        });
+        shardCountCache.putAll(shardMap);
+        vouchers.forEach(voucher -> windowCache.invalidate(voucher.getVoucherId()));
+    }
+
+    /**
+     * 秒杀时间hash 开始和结束时间(毫秒)
+     *
+     * @param voucher 秒杀券
+     * @return 没有设置时间时返回null
+     */
+    private static Map<byte[], byte[]> windowHash(SeckillVoucher voucher) {
+        if (voucher.getBeginTime() == null || voucher.getEndTime() == null) {
+            return null;
+        }
+        Map<byte[], byte[]> window = new HashMap<>(4);
+        window.put(bytes(FIELD_BEGIN), bytes(String.valueOf(toMillis(voucher.getBeginTime()))));
+        window.put(bytes(FIELD_END), bytes(String.valueOf(toMillis(voucher.getEndTime()))));
+        return window;
+    }
+
+    /**
+     * 本地预先检查秒杀时间 本地缓存的时间可能落后 最终以lua脚本中的检查为准
+     *
+     * @param voucherId 券id
+     * @return {@link #SUCCESS} {@link #NOT_STARTED} {@link #ENDED}
+     */
+    public int checkWindow(Long voucherId) {
+        long[] window = windowCache.get(voucherId, id -> {
+            //分片时每个分片的时间相同 读取第一个分片
+            String key = shardCount(id) <= 1 ? SECKILL_VOUCHER_KEY + id : voucherKey(id, 0);
+            List<Object> values = stringRedisTemplate.opsForHash().multiGet(key, Arrays.<Object>asList(FIELD_BEGIN, FIELD_END));
+            if (values.size() < 2 || values.get(0) == null || values.get(1) == null) {
+                //没有时间信息 不限制
+                return new long[]{Long.MIN_VALUE, Long.MAX_VALUE};
+            }
+            return new long[]{Long.parseLong(values.get(0).toString()), Long.parseLong(values.get(1).toString())};
+        });
+        long now = System.currentTimeMillis();
+        if (now < window[0]) {
+            return NOT_STARTED;
+        }
+        if (now > window[1]) {
+            return ENDED;
+        }
+        return SUCCESS;
+    }
+
+    /**
+     * 秒杀 扣减库存并记录用户 成功时发送订单消息
+     *
+     * @param voucherId 券id
+     * @param userId    用户id
+     * @param orderId   订单id
+     * @return {@link #SUCCESS} {@link #SOLD_OUT} {@link #DUPLICATE} {@link #NOT_STARTED} {@link #ENDED}
+     */
+    public int seckill(Long voucherId, Long userId, Long orderId) {
+        int shards = shardCount(voucherId);
+        if (shards <= 1) {
+            Long res = stringRedisTemplate.execute(
+                    SECKILL_SCRIPT
+                    , Collections.emptyList()
+                    , voucherId.toString()
+                    , userId.toString()
+                    , orderId.toString()
+                    , OrderStatusClient.statusKey(orderId)
+                    , ORDER_STATUS_TTL.toString());
+            return res == null ? SOLD_OUT : res.intValue();
+        }
+        int home = shardOf(userId, shards);
+        Long res = stringRedisTemplate.execute(
+                SECKILL_SHARD_SCRIPT
+                , Arrays.asList(stockKey(voucherId, home), orderKey(voucherId, home), voucherKey(voucherId, home)
+                        , pendingKey(voucherId, home))
+                , userId.toString()
+                , orderId.toString()
+                , String.valueOf(home));
+        int r = res == null ? SOLD_OUT : res.intValue();
+        if (r == DUPLICATE || r == NOT_STARTED || r == ENDED) {
+            return r;
+        }
+        int taken = home;
+        if (r == SHARD_EMPTY) {
+            taken = takeFromSiblings(voucherId, userId, orderId, home, shards);
+            if (taken < 0) {
+                //所有分片都没有库存 撤销去重记录
+                releaseHold(voucherId, userId, orderId, home);
+                return SOLD_OUT;
+            }
+        }
+        try {
+            //先记录状态再发送消息 避免消费者写入的CREATED被覆盖
+            orderStatusClient.markPending(orderId);
+            sendOrder(voucherId, userId, orderId);
+        } catch (RuntimeException e) {
+            //消息发送失败 先删除待发送记录避免对账任务补发 再归还库存和资格
+            clearPending(voucherId, userId, orderId, home, taken);
+            stringRedisTemplate.opsForValue().increment(stockKey(voucherId, taken));
+            stringRedisTemplate.opsForSet().remove(orderKey(voucherId, home), userId.toString());
+            orderStatusClient.markFailed(orderId);
+            throw e;
+        }
+        clearPending(voucherId, userId, orderId, home, taken);
+        return SUCCESS;
+    }
+
+    /**
+     * 对账分片模式下超时仍未删除的待发送记录(扣减库存后、发送订单消息前宕机)
+     * 已扣减库存的重新发送订单消息 消费者按订单id去重 消息已经发送过也不会重复下单
+     * 只占住资格还没扣减库存的 其他分片也没有扣减记录时释放资格
+     *
+     * @param timeoutMillis 记录超过该时间(毫秒)视为遗留
+     * @return 处理的记录数
+     */
+    public int reconcilePending(long timeoutMillis) {
+        List<String> keys = new ArrayList<>();
+        ScanOptions options = ScanOptions.scanOptions().match(SECKILL_PENDING_KEY + "*").count(1000).build();
+        try (Cursor<String> cursor = stringRedisTemplate.scan(options)) {
+            cursor.forEachRemaining(keys::add);
+        }
+        long deadline = System.currentTimeMillis() - timeoutMillis;
+        int reconciled = 0;
+        for (String key : keys) {
+            Set<String> members = stringRedisTemplate.opsForZSet().rangeByScore(key, 0, deadline);
+            if (members == null || members.isEmpty()) {
+                continue;
+            }
+            //key形如 seckill:pending:{voucherId:i}
+            String tag = key.substring(SECKILL_PENDING_KEY.length() + 1, key.length() - 1);
+            Long voucherId = Long.valueOf(tag.substring(0, tag.indexOf(':')));
+            int shards = shardCount(voucherId);
+            for (String member : members) {
+                //订单id:用户id:扣减库存的分片(-1表示还没有扣减)
+                String[] parts = member.split(":");
+                Long orderId = Long.valueOf(parts[0]);
+                Long userId = Long.valueOf(parts[1]);
+                int taken = Integer.parseInt(parts[2]);
+                int home = shardOf(userId, shards);
+                if (taken >= 0) {
+                    orderStatusClient.markPending(orderId);
+                    sendOrder(voucherId, userId, orderId);
+                    clearPending(voucherId, userId, orderId, home, taken);
+                    log.warn("补发订单消息 voucherId:{} userId:{} orderId:{}", voucherId, userId, orderId);
+                } else if (!takenFromSiblings(voucherId, userId, orderId, home, shards)) {
+                    releaseHold(voucherId, userId, orderId, home);
+                    log.warn("释放未完成秒杀占用的资格 voucherId:{} userId:{} orderId:{}", voucherId, userId, orderId);
+                } else {
+                    //其他分片已经扣减 由该分片的记录补发
+                    continue;
+                }
+                reconciled++;
+            }
+        }
+        return reconciled;
+    }
+
+    /**
+     * 归还已取消订单的库存和下单资格 分片时归还到用户所在分片
+     *
+     * @param voucherOrders 已取消的订单
+     */
+    public void returnStock(List<VoucherOrder> voucherOrders) {
+        if (voucherOrders.isEmpty()) {
+            return;
+        }
+        //先在管道外读取分片数量 本地缓存未命中时需要访问redis
+        Map<Long, Integer> shardMap = new HashMap<>();
+        voucherOrders.forEach(order -> shardMap.computeIfAbsent(order.getVoucherId(), this::shardCount));
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (VoucherOrder order : voucherOrders) {
+                Long voucherId = order.getVoucherId();
+                int shards = shardMap.get(voucherId);
+                String stockKey;
+                String orderKey;
+                if (shards <= 1) {
+                    stockKey = SECKILL_STOCK_KEY + voucherId;
+                    orderKey = SECKILL_ORDER_KEY + voucherId;
+                } else {
+                    int home = shardOf(order.getUserId(), shards);
+                    stockKey = stockKey(voucherId, home);
+                    orderKey = orderKey(voucherId, home);
+                }
+                connection.stringCommands().incr(bytes(stockKey));
+                connection.setCommands().sRem(bytes(orderKey), bytes(order.getUserId().toString()));
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 从其他分片扣减库存 扣减的同时在该分片记录待发送订单
+     *
+     * @return 扣减成功的分片 都没有库存时返回-1
+     */
+    private int takeFromSiblings(Long voucherId, Long userId, Long orderId, int home, int shards) {
+        for (int i = 1; i < shards; i++) {
+            int shard = (home + i) % shards;
+            Long ok = stringRedisTemplate.execute(SECKILL_STOCK_SCRIPT
+                    , Arrays.asList(stockKey(voucherId, shard), pendingKey(voucherId, shard))
+                    , pendingMember(orderId, userId, shard));
+            if (ok != null && ok == 1L) {
+                return shard;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 其他分片是否有该订单的扣减记录
+     */
+    private boolean takenFromSiblings(Long voucherId, Long userId, Long orderId, int home, int shards) {
+        List<Object> scores = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (int i = 1; i < shards; i++) {
+                int shard = (home + i) % shards;
+                connection.zSetCommands().zScore(bytes(pendingKey(voucherId, shard))
+                        , bytes(pendingMember(orderId, userId, shard)));
+            }
+            return null;
+        });
+        return scores.stream().anyMatch(Objects::nonNull);
+    }
+
+    /**
+     * 删除待发送记录 从其他分片扣减时一并删除用户所在分片占用资格的记录
+     */
+    private void clearPending(Long voucherId, Long userId, Long orderId, int home, int taken) {
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            connection.zSetCommands().zRem(bytes(pendingKey(voucherId, taken)), bytes(pendingMember(orderId, userId, taken)));
+            if (taken != home) {
+                connection.zSetCommands().zRem(bytes(pendingKey(voucherId, home)), bytes(pendingMember(orderId, userId, -1)));
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 撤销去重记录和占用资格的记录
+     */
+    private void releaseHold(Long voucherId, Long userId, Long orderId, int home) {
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            connection.setCommands().sRem(bytes(orderKey(voucherId, home)), bytes(userId.toString()));
+            connection.zSetCommands().zRem(bytes(pendingKey(voucherId, home)), bytes(pendingMember(orderId, userId, -1)));
+            return null;
+        });
+    }
+
+    private void sendOrder(Long voucherId, Long userId, Long orderId) {
+        Map<String, String> values = new HashMap<>(4);
+        values.put("userId", userId.toString());
+        values.put("voucherId", voucherId.toString());
+        values.put("id", orderId.toString());
+        stringRedisTemplate.opsForStream().add(StreamRecords.newRecord().in(ORDER_STREAM_KEY).ofMap(values));
+    }
+
+    /**
+     * 剩余库存 分片时为所有分片之和
+     *
+     * @param voucherId 券id
+     * @return long
+     */
+    public long remainingStock(Long voucherId) {
+        int shards = shardCount(voucherId);
+        List<String> keys = new ArrayList<>(shards);
+        if (shards <= 1) {
+            keys.add(SECKILL_STOCK_KEY + voucherId);
+        } else {
+            for (int i = 0; i < shards; i++) {
+                keys.add(stockKey(voucherId, i));
+            }
+        }
+        List<String> values = stringRedisTemplate.opsForValue().multiGet(keys);
+        if (values == null) {
+            return 0;
+        }
+        long remaining = 0;
+        for (String value : values) {
+            if (value != null) {
+                remaining += Math.max(0, Long.parseLong(value));
+            }
+        }
+        return remaining;
+    }
+
+    /**
+     * 分片数量 没有分片信息时为1
+     *
+     * @param voucherId 券id
+     * @return int
+     */
+    public int shardCount(Long voucherId) {
+        return shardCountCache.get(voucherId, id -> {
+            String shards = stringRedisTemplate.opsForValue().get(SECKILL_SHARDS_KEY + id);
+            return shards == null ? 1 : Integer.parseInt(shards);
+        });
+    }
+
+    /**
+     * 用户所在分片
+     */
+    private static int shardOf(Long userId, int shards) {
+        return (int) Math.floorMod(userId, (long) shards);
+    }
+
+    private static String stockKey(Long voucherId, int shard) {
+        return SECKILL_STOCK_KEY + "{" + voucherId + ":" + shard + "}";
+    }
+
+    private static String orderKey(Long voucherId, int shard) {
+        return SECKILL_ORDER_KEY + "{" + voucherId + ":" + shard + "}";
+    }
+
+    private static String voucherKey(Long voucherId, int shard) {
+        return SECKILL_VOUCHER_KEY + "{" + voucherId + ":" + shard + "}";
+    }
+
+    private static String pendingKey(Long voucherId, int shard) {
+        return SECKILL_PENDING_KEY + "{" + voucherId + ":" + shard + "}";
+    }
+
+    private static String pendingMember(Long orderId, Long userId, int shard) {
+        return orderId + ":" + userId + ":" + shard;
+    }
+
+    private static long toMillis(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,113 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.redis.connection.RedisStreamCommands;
+import org.springframework.data.redis.connection.stream.ByteRecord;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.ReadOffset;
+import org.springframework.data.redis.connection.stream.StreamRecords;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.stereotype.Component;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.*;
+
+/**
+ * stream消费者的公共操作 订单消费者和feed推送共用
+ *
+ * @author CHEN
+ * @date 2022/11/06
+ */
+@Slf4j
+@Component
+public class StreamClient {
+    private final StringRedisTemplate stringRedisTemplate;
+
+    public StreamClient(StringRedisTemplate stringRedisTemplate) {
+        this.stringRedisTemplate = stringRedisTemplate;
+    }
+
+    /**
+     * 创建消费者组 stream不存在时一并创建
+     *
+     * @param key   stream
+     * @param group 消费者组
+     */
+    public void createGroup(String key, String group) {
+        byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+        try {
+            stringRedisTemplate.execute((RedisCallback<String>) connection ->
+                    connection.streamCommands().xGroupCreate(rawKey, group, ReadOffset.from("0"), true));
+            log.info("创建消费者组 stream:{} group:{}", key, group);
+        } catch (DataAccessException e) {
+            //BUSYGROUP 消费者组已存在
+            if (e.getMessage() == null || !e.getMessage().contains("BUSYGROUP")) {
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * 通过XCLAIM把空闲超时的消息转给指定的消费者
+     * 带有最小空闲时间 多个节点同时回收时同一条消息只会被一个节点领取
+     *
+     * @param key           stream
+     * @param group         消费者组
+     * @param consumer      领取消息的消费者
+     * @param minIdleMillis 最小空闲时间(毫秒)
+     * @param ids           消息id
+     * @return 领取到的消息 其他节点已经领取的不包含在内
+     */
+    public List<MapRecord<String, Object, Object>> claim(String key, String group, String consumer
+            , long minIdleMillis, List<String> ids) {
+        if (ids.isEmpty()) {
+            return Collections.emptyList();
+        }
+        byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+        RedisStreamCommands.XClaimOptions options = RedisStreamCommands.XClaimOptions
+                .minIdle(Duration.ofMillis(minIdleMillis))
+                .ids(ids.toArray(new String[0]));
+        List<ByteRecord> claimed = stringRedisTemplate.execute((RedisCallback<List<ByteRecord>>) connection ->
+                connection.streamCommands().xClaim(rawKey, group, consumer, options));
+        if (claimed == null || claimed.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<MapRecord<String, Object, Object>> records = new ArrayList<>(claimed.size());
+        for (ByteRecord record : claimed) {
+            MapRecord<String, String, String> mapRecord = record.deserialize(RedisSerializer.string());
+            records.add(StreamRecords.newRecord()
+                    .in(key)
+                    .withId(mapRecord.getId())
+                    .ofMap(new HashMap<Object, Object>(mapRecord.getValue())));
+        }
+        return records;
+    }
+
+    /**
+     * 实例名称 主机名-进程号 消费者名称以此为前缀 保证各实例之间不重复
+     *
+     * @return {@link String}
+     */
+    public static String instanceName() {
+        //格式为 进程号@主机名
+        String jvmName = ManagementFactory.getRuntimeMXBean().getName();
+        int index = jvmName.indexOf('@');
+        if (index < 0) {
+            return jvmName;
+        }
+        return jvmName.substring(index + 1) + "-" + jvmName.substring(0, index);
+    }
+
+    public static void sleepQuietly(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
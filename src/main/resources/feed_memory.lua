@@ -0,0 +1,9 @@
+---
+--- Generated by Luanalysis
+--- Created by CHEN.
+--- DateTime: 2022/11/10 16:05
+---
+
+--收件箱key 形如 feed:{userId}
+--内存占用(字节) key不存在时为0
+return redis.call('memory', 'usage', KEYS[1]) or 0
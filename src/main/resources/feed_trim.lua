@@ -0,0 +1,20 @@
+---
+--- Generated by Luanalysis
+--- Created by CHEN.
+--- DateTime: 2022/11/07 10:20
+---
+
+--收件箱key 形如 feed:{userId}
+local key = KEYS[1]
+--保留的条数
+local keep = tonumber(ARGV[1])
+
+local size = redis.call('zcard', key)
+if (size <= keep) then
+    return {0, 0}
+end
+--裁剪前后的内存占用(字节)
+local before = redis.call('memory', 'usage', key) or 0
+redis.call('zremrangebyrank', key, 0, size - keep - 1)
+local after = redis.call('memory', 'usage', key) or 0
+return {size - keep, before - after}
@@ -0,0 +1,22 @@
+---
+--- Generated by Luanalysis
+--- Created by CHEN.
+--- DateTime: 2022/11/05 09:40
+---
+
+--订单超时zset 成员为订单id 分数为超时时间(毫秒)
+local key = KEYS[1]
+--当前时间(毫秒)
+local now = tonumber(ARGV[1])
+--每次取出的数量
+local count = tonumber(ARGV[2])
+--租约(毫秒)
+local lease = tonumber(ARGV[3])
+
+--取出已超时的订单
+local ids = redis.call('zrangebyscore', key, '-inf', now, 'LIMIT', 0, count)
+--不直接删除 把分数推后一个租约 处理完成后再删除 处理节点宕机时租约到期后被其他节点重新取出
+for i = 1, #ids do
+    redis.call('zadd', key, now + lease, ids[i])
+end
+return ids
@@ -10,11 +10,32 @@ local voucherId = ARGV[1]
 local userId = ARGV[2]
 --订单id
 local id = ARGV[3]
+--订单状态key 形如 order:status:{orderId>>7}
+local statusKey = ARGV[4]
+--订单状态过期时间(秒)
+local statusTtl = ARGV[5]
 
 --库存key
 local stockKey = 'seckill:stock:' .. voucherId
 --订单key
 local orderKey = 'seckill:order:' .. voucherId
+--秒杀时间key
+local voucherKey = 'seckill:voucher:' .. voucherId
+
+--判断秒杀时间 没有时间信息的券不限制
+local window = redis.call('hmget', voucherKey, 'begin', 'end')
+if (window[1] and window[2]) then
+    local time = redis.call('time')
+    local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+    --秒杀尚未开始
+    if (now < tonumber(window[1])) then
+        return 4
+    end
+    --秒杀已经结束
+    if (now > tonumber(window[2])) then
+        return 5
+    end
+end
 
 --库存是否充足
 --库存不足
@@ -32,6 +53,9 @@ end
 redis.call('incrby',stockKey,-1)
 --下单（保存用户）
 redis.call('sadd',orderKey,userId)
+--记录订单状态为处理中
+redis.call('hset', statusKey, id, '0')
+redis.call('expire', statusKey, statusTtl)
 --发送消息
 redis.call('xadd','stream.orders','*','userId',userId,'voucherId',voucherId,'id',id)
 return 0
@@ -0,0 +1,57 @@
+---
+--- Generated by Luanalysis
+--- Created by CHEN.
+--- DateTime: 2022/10/31 10:12
+---
+
+--分片库存key 形如 seckill:stock:{voucherId:i}
+local stockKey = KEYS[1]
+--分片订单key 形如 seckill:order:{voucherId:i} 与库存key在同一个slot
+local orderKey = KEYS[2]
+--分片秒杀时间key 形如 seckill:voucher:{voucherId:i} 与库存key在同一个slot
+local voucherKey = KEYS[3]
+--分片待发送订单key 形如 seckill:pending:{voucherId:i} 与库存key在同一个slot
+local pendingKey = KEYS[4]
+--用户id
+local userId = ARGV[1]
+--订单id
+local id = ARGV[2]
+--分片序号
+local shard = ARGV[3]
+
+local time = redis.call('time')
+local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+
+--判断秒杀时间 没有时间信息的券不限制
+local window = redis.call('hmget', voucherKey, 'begin', 'end')
+if (window[1] and window[2]) then
+    --秒杀尚未开始
+    if (now < tonumber(window[1])) then
+        return 4
+    end
+    --秒杀已经结束
+    if (now > tonumber(window[2])) then
+        return 5
+    end
+end
+
+--判断用户是否下单 用户总是落在同一个分片 所以只需要检查这一个分片
+--存在用户 禁止重复下单
+if (redis.call('sismember', orderKey, userId) == 1) then
+    return 2
+end
+
+--下单（保存用户） 先占住资格 防止同一用户并发请求都去其他分片扣库存
+redis.call('sadd', orderKey, userId)
+
+--本分片库存充足 扣减库存
+--订单消息由java发送(stream与分片不在同一个slot) 同时记录待发送订单 发送前宕机时由对账任务补发
+if (tonumber(redis.call('get', stockKey) or '0') > 0) then
+    redis.call('incrby', stockKey, -1)
+    redis.call('zadd', pendingKey, now, id .. ':' .. userId .. ':' .. shard)
+    return 0
+end
+
+--本分片库存不足 需要到其他分片扣减 记录占用的资格(-1表示还没有扣减库存) 扣减前宕机时由对账任务释放
+redis.call('zadd', pendingKey, now, id .. ':' .. userId .. ':-1')
+return 3
@@ -0,0 +1,21 @@
+---
+--- Generated by Luanalysis
+--- Created by CHEN.
+--- DateTime: 2022/10/31 10:12
+---
+
+--分片库存key
+local stockKey = KEYS[1]
+--分片待发送订单key 与库存key在同一个slot
+local pendingKey = KEYS[2]
+--待发送订单 订单id:用户id:分片
+local member = ARGV[1]
+
+--库存充足 扣减库存 同时记录待发送订单
+if (tonumber(redis.call('get', stockKey) or '0') > 0) then
+    redis.call('incrby', stockKey, -1)
+    local time = redis.call('time')
+    redis.call('zadd', pendingKey, tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000), member)
+    return 1
+end
+return 0
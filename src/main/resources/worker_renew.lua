@@ -0,0 +1,16 @@
+---
+--- Generated by Luanalysis
+--- Created by CHEN.
+--- DateTime: 2022/11/10 14:20
+---
+
+--机器id租约key 形如 icr:worker:{workerId}
+--租约仍属于本实例时续期
+if (redis.call('get', KEYS[1]) == ARGV[1]) then
+    return redis.call('pexpire', KEYS[1], ARGV[2])
+end
+--租约已过期 且没有被其他实例领取时重新领取
+if (redis.call('set', KEYS[1], ARGV[1], 'NX', 'PX', ARGV[2])) then
+    return 1
+end
+return 0
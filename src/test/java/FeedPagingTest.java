@@ -0,0 +1,115 @@
+import com.hmdp.HmDianPingApplication;
+import com.hmdp.dto.Result;
+import com.hmdp.dto.ScrollResult;
+import com.hmdp.dto.UserDTO;
+import com.hmdp.entity.Blog;
+import com.hmdp.service.IBlogService;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.UserHolder;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static com.hmdp.utils.RedisConstants.*;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 关注feed跨越收件箱裁剪边界分页
+ * <p>
+ * 收件箱只保留3条 作者共7篇博客 其中两组发布时间相同 裁剪边界上的博客有一篇已被裁剪
+ * 逐页读取 应该按(发布时间, id)倒序读到全部博客 不重复也不遗漏
+ *
+ * @author CHEN
+ * @date 2022/11/10
+ */
+@SpringBootTest(classes = HmDianPingApplication.class
+        , properties = {"hmdp.feed.inbox-size=3", "hmdp.feed.page-size=2"})
+public class FeedPagingTest {
+    /**
+     * 测试用户id 不需要在tb_user中存在
+     */
+    private static final long READER_ID = 9_100_000_001L;
+    private static final long AUTHOR_ID = 9_100_000_002L;
+
+    @Resource
+    private IBlogService blogService;
+    @Resource
+    private CacheClient cacheClient;
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    private final List<Long> blogIds = new ArrayList<>();
+
+    @BeforeEach
+    public void setUp() {
+        LocalDateTime now = LocalDateTime.now().withNano(0);
+        //按id递增的顺序发布 秒数相同的两组: 4秒前2篇 3秒前2篇
+        for (int secondsAgo : new int[]{5, 4, 4, 3, 3, 2, 1}) {
+            Blog blog = new Blog();
+            blog.setShopId(1L);
+            blog.setUserId(AUTHOR_ID);
+            blog.setTitle("feed paging");
+            blog.setImages("");
+            blog.setContent("feed paging");
+            blog.setCreateTime(now.minusSeconds(secondsAgo));
+            blogService.save(blog);
+            cacheClient.addToBloomFilter(CACHE_BLOG_KEY, blog.getId());
+            blogIds.add(blog.getId());
+        }
+        stringRedisTemplate.opsForSet().add(FOLLOWS_KEY + READER_ID, String.valueOf(AUTHOR_ID));
+        stringRedisTemplate.opsForZSet().add(FEED_ACTIVE_KEY, String.valueOf(READER_ID), System.currentTimeMillis());
+        //收件箱只剩最新的3篇 3秒前的第一篇已被裁剪 裁剪边界为3秒前
+        for (int i = 4; i < blogIds.size(); i++) {
+            Blog blog = blogService.getById(blogIds.get(i));
+            stringRedisTemplate.opsForZSet().add(FEED_KEY + READER_ID, blog.getId().toString()
+                    , blog.getCreateTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli());
+        }
+        UserDTO user = new UserDTO();
+        user.setId(READER_ID);
+        UserHolder.saveUser(user);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        UserHolder.removeUser();
+        blogService.removeByIds(blogIds);
+        blogIds.forEach(id -> stringRedisTemplate.delete(CACHE_BLOG_KEY + id));
+        stringRedisTemplate.delete(Arrays.asList(FEED_KEY + READER_ID, FOLLOWS_KEY + READER_ID));
+        stringRedisTemplate.opsForZSet().remove(FEED_ACTIVE_KEY, String.valueOf(READER_ID));
+    }
+
+    @Test
+    public void testPagingAcrossTrimBoundary() {
+        List<Long> read = new ArrayList<>();
+        long max = System.currentTimeMillis() + 60000;
+        int offset = 0;
+        for (int page = 0; page < 10; page++) {
+            Result result = blogService.queryBlogOfFollow(max, offset);
+            assertTrue(result.getSuccess());
+            ScrollResult scrollResult = (ScrollResult) result.getData();
+            if (scrollResult == null) {
+                break;
+            }
+            for (Object blog : scrollResult.getList()) {
+                read.add(((Blog) blog).getId());
+            }
+            max = scrollResult.getMinTime();
+            offset = scrollResult.getOffset();
+        }
+        //(发布时间, id)倒序 同一秒内id大的在前
+        List<Long> expected = new ArrayList<>(blogIds);
+        Collections.reverse(expected);
+        assertEquals(expected, read);
+    }
+}
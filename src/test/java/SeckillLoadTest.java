@@ -0,0 +1,251 @@
+import cn.hutool.core.lang.UUID;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.HmDianPingApplication;
+import com.hmdp.dto.Result;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.Voucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.service.IVoucherService;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.boot.test.web.server.LocalServerPort;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.hmdp.utils.RedisConstants.LOGIN_USER_KEY;
+import static com.hmdp.utils.RedisConstants.LOGIN_USER_TTL;
+import static com.hmdp.utils.SystemConstants.USER_NICK_NAME_PREFIX;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 秒杀压测 替代jmeter+tokens.txt的方式 在任意机器上复现秒杀容量
+ * <p>
+ * 启动完整应用(随机端口) 连接application.yaml中配置的redis和mysql 可通过 -Dspring.redis.host 等覆盖
+ * 新建一张秒杀券 直接向redis写入N个用户的token 并发请求 POST /voucher-order/seckill/{id}
+ * 输出吞吐量、延迟分布 等待消费者落库后检查 tb_voucher_order 是否超卖或一人多单
+ * <p>
+ * 默认不执行 通过 mvn test -Dtest=SeckillLoadTest -Dseckill.load-test=true 运行
+ * 可选参数: -Dseckill.users=用户数 -Dseckill.stock=库存 -Dseckill.repeat=每人请求次数 -Dseckill.concurrency=并发线程数
+ *
+ * @author CHEN
+ * @date 2022/11/04
+ */
+@EnabledIfSystemProperty(named = "seckill.load-test", matches = "true")
+@SpringBootTest(classes = HmDianPingApplication.class, webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+public class SeckillLoadTest {
+    /**
+     * 压测用户id起点 不需要在tb_user中存在 避免和真实用户冲突
+     */
+    private static final long USER_ID_BASE = 9_000_000_000L;
+    /**
+     * 延迟分布的桶上界(毫秒)
+     */
+    private static final long[] BUCKETS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, Long.MAX_VALUE};
+
+    private final int users = Integer.getInteger("seckill.users", 5000);
+    private final int stock = Integer.getInteger("seckill.stock", 200);
+    private final int repeat = Integer.getInteger("seckill.repeat", 2);
+    private final int concurrency = Integer.getInteger("seckill.concurrency", 200);
+
+    @LocalServerPort
+    private int port;
+    @Resource
+    private TestRestTemplate restTemplate;
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private IVoucherService voucherService;
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Test
+    public void testSeckill() throws Exception {
+        Long voucherId = createVoucher();
+        List<String> tokens = mintTokens();
+        try {
+            //每个用户请求repeat次 打乱顺序 让重复请求和首次请求交错
+            List<String> requests = new ArrayList<>(users * repeat);
+            for (int i = 0; i < repeat; i++) {
+                requests.addAll(tokens);
+            }
+            Collections.shuffle(requests);
+
+            String url = "http://localhost:" + port + "/voucher-order/seckill/" + voucherId;
+            long[] latencies = new long[requests.size()];
+            AtomicLong succeeded = new AtomicLong();
+            Map<String, AtomicLong> failures = new ConcurrentHashMap<>();
+            ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<?>> futures = new ArrayList<>(requests.size());
+            for (int i = 0; i < requests.size(); i++) {
+                int index = i;
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    HttpHeaders headers = new HttpHeaders();
+                    headers.set("authorization", requests.get(index));
+                    long begin = System.nanoTime();
+                    Result result = restTemplate.exchange(url, HttpMethod.POST, new HttpEntity<>(headers), Result.class).getBody();
+                    latencies[index] = System.nanoTime() - begin;
+                    if (result != null && Boolean.TRUE.equals(result.getSuccess())) {
+                        succeeded.incrementAndGet();
+                    } else {
+                        String reason = result == null ? "无响应" : String.valueOf(result.getErrorMsg());
+                        failures.computeIfAbsent(reason, r -> new AtomicLong()).incrementAndGet();
+                    }
+                    return null;
+                }));
+            }
+            long begin = System.nanoTime();
+            start.countDown();
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            long elapsed = System.nanoTime() - begin;
+            executor.shutdown();
+
+            report(latencies, elapsed, succeeded.get(), failures);
+            verify(voucherId, succeeded.get());
+        } finally {
+            stringRedisTemplate.delete(toKeys(tokens));
+        }
+    }
+
+    /**
+     * 新建一张已开始的秒杀券 保证每次压测的库存和订单都是干净的
+     */
+    private Long createVoucher() {
+        Voucher voucher = new Voucher();
+        voucher.setShopId(1L);
+        voucher.setTitle("压测秒杀券");
+        voucher.setPayValue(100L);
+        voucher.setActualValue(100L);
+        voucher.setType(1);
+        voucher.setStock(stock);
+        voucher.setBeginTime(LocalDateTime.now().minusMinutes(1));
+        voucher.setEndTime(LocalDateTime.now().plusHours(1));
+        voucherService.addSeckillVoucher(voucher);
+        return voucher.getId();
+    }
+
+    /**
+     * 直接写入登录token 格式同 UserServiceImpl.login
+     */
+    private List<String> mintTokens() {
+        List<String> tokens = new ArrayList<>(users);
+        for (int i = 0; i < users; i++) {
+            tokens.add(UUID.randomUUID().toString(true));
+        }
+        long ttl = TimeUnit.MINUTES.toSeconds(LOGIN_USER_TTL);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (int i = 0; i < users; i++) {
+                byte[] key = bytes(LOGIN_USER_KEY + tokens.get(i));
+                Map<byte[], byte[]> user = new HashMap<>(4);
+                user.put(bytes("id"), bytes(String.valueOf(USER_ID_BASE + i)));
+                user.put(bytes("nickName"), bytes(USER_NICK_NAME_PREFIX + i));
+                user.put(bytes("icon"), bytes(""));
+                connection.hashCommands().hMSet(key, user);
+                connection.keyCommands().expire(key, ttl);
+            }
+            return null;
+        });
+        return tokens;
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static List<String> toKeys(List<String> tokens) {
+        List<String> keys = new ArrayList<>(tokens.size());
+        tokens.forEach(token -> keys.add(LOGIN_USER_KEY + token));
+        return keys;
+    }
+
+    private void report(long[] latencies, long elapsedNanos, long succeeded, Map<String, AtomicLong> failures) {
+        long[] sorted = latencies.clone();
+        Arrays.sort(sorted);
+        double seconds = elapsedNanos / 1e9;
+        System.out.printf("请求数:%d 用户数:%d 库存:%d 并发:%d 耗时:%.2fs 吞吐量:%.0f req/s%n"
+                , sorted.length, users, stock, concurrency, seconds, sorted.length / seconds);
+        System.out.printf("成功:%d 失败:%s%n", succeeded, failures);
+        System.out.printf("延迟(ms) p50:%.2f p90:%.2f p99:%.2f p999:%.2f max:%.2f%n"
+                , percentile(sorted, 0.5), percentile(sorted, 0.9), percentile(sorted, 0.99)
+                , percentile(sorted, 0.999), sorted[sorted.length - 1] / 1e6);
+        long[] counts = new long[BUCKETS.length];
+        for (long latency : sorted) {
+            long millis = TimeUnit.NANOSECONDS.toMillis(latency);
+            int i = 0;
+            while (millis >= BUCKETS[i]) {
+                i++;
+            }
+            counts[i]++;
+        }
+        long lower = 0;
+        for (int i = 0; i < BUCKETS.length; i++) {
+            if (counts[i] > 0) {
+                String upper = BUCKETS[i] == Long.MAX_VALUE ? "+∞" : String.valueOf(BUCKETS[i]);
+                System.out.printf("[%5d, %5s) ms %8d %s%n", lower, upper, counts[i]
+                        , repeatChar(counts[i] * 50 / sorted.length));
+            }
+            lower = BUCKETS[i];
+        }
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        int index = (int) Math.min(sorted.length - 1, Math.ceil(p * sorted.length) - 1);
+        return sorted[Math.max(0, index)] / 1e6;
+    }
+
+    private static String repeatChar(long n) {
+        StringBuilder sb = new StringBuilder();
+        for (long i = 0; i < n; i++) {
+            sb.append('#');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 等待消费者落库 检查超卖和一人多单
+     */
+    private void verify(Long voucherId, long succeeded) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(60);
+        long orders = countOrders(voucherId);
+        while (orders < succeeded && System.currentTimeMillis() < deadline) {
+            Thread.sleep(200);
+            orders = countOrders(voucherId);
+        }
+        List<Map<String, Object>> duplicates = voucherOrderService.listMaps(new QueryWrapper<VoucherOrder>()
+                .select("user_id", "count(*) AS cnt")
+                .eq("voucher_id", voucherId)
+                .groupBy("user_id")
+                .having("count(*) > 1"));
+        SeckillVoucher seckillVoucher = seckillVoucherService.getById(voucherId);
+        System.out.printf("落库订单:%d 剩余库存:%d 一人多单:%d%n", orders, seckillVoucher.getStock(), duplicates.size());
+
+        assertEquals(succeeded, orders, "成功响应数和落库订单数不一致");
+        assertTrue(orders <= stock, "超卖 订单数:" + orders + " 库存:" + stock);
+        assertEquals(stock - orders, seckillVoucher.getStock().longValue(), "数据库库存和订单数不一致");
+        assertTrue(duplicates.isEmpty(), "一人多单:" + duplicates);
+    }
+
+    private long countOrders(Long voucherId) {
+        return voucherOrderService.lambdaQuery().eq(VoucherOrder::getVoucherId, voucherId).count();
+    }
+}
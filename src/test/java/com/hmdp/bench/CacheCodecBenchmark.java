@@ -0,0 +1,135 @@
+package com.hmdp.bench;
+
+import com.hmdp.entity.Blog;
+import com.hmdp.entity.Shop;
+import com.hmdp.entity.ShopType;
+import com.hmdp.utils.CacheCodec;
+import com.hmdp.utils.JsonCacheCodec;
+import com.hmdp.utils.KryoCacheCodec;
+import com.hmdp.utils.RedisData;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.time.LocalDateTime;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 缓存编解码器基准测试 对比json与kryo的存储字节数和ns/op
+ * 存储字节数通过辅助计数器输出 在encode的结果中显示为 encode:bytes
+ * 运行main方法 或 mvn test-compile 后通过jmh执行
+ *
+ * @author CHEN
+ * @date 2022/10/21
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CacheCodecBenchmark {
+    @Param({"json", "kryo"})
+    private String codecName;
+    @Param({"shop", "shopType", "blog"})
+    private String typeName;
+
+    private CacheCodec codec;
+    private Class<?> type;
+    private RedisData redisData;
+    private byte[] bytes;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        codec = "kryo".equals(codecName) ? new KryoCacheCodec() : new JsonCacheCodec();
+        Object value;
+        switch (typeName) {
+            case "shop":
+                value = shop();
+                break;
+            case "shopType":
+                value = shopType();
+                break;
+            default:
+                value = blog();
+        }
+        type = value.getClass();
+        redisData = new RedisData();
+        redisData.setData(value);
+        redisData.setExpireTime(LocalDateTime.now().plusMinutes(30));
+        bytes = codec.encode(redisData);
+    }
+
+    /**
+     * 编码后的字节数 每次编码时记录
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class EncodedSize {
+        public long bytes;
+    }
+
+    @Benchmark
+    public byte[] encode(EncodedSize size) {
+        byte[] encoded = codec.encode(redisData);
+        size.bytes = encoded.length;
+        return encoded;
+    }
+
+    @Benchmark
+    public RedisData decode() {
+        return codec.decodeWithLogicalExpire(bytes, type);
+    }
+
+    private static Shop shop() {
+        return new Shop()
+                .setId(1L)
+                .setName("103茶餐厅")
+                .setTypeId(1L)
+                .setImages("https://qcloud.dpfile.com/pc/jiclIsCKmOI2arxKN1Uf0Hx3PucIJH8q0QSz-Z8llzcN56-_QiKuOvyio1OOxsRtFoXqu0G3iT2T27qat3WhLVEuLYk00OmSS1IdNpm8K8sG4JN9RIm2mTKcbLtc2o2vfCF2ubeXzk49OsGrXt_KYDCngOyCwZK-s3fqawWswzk.jpg")
+                .setArea("大关")
+                .setAddress("金华路锦昌文华苑29号")
+                .setX(120.149192)
+                .setY(30.316078)
+                .setAvgPrice(80L)
+                .setSold(4215)
+                .setComments(3035)
+                .setScore(37)
+                .setOpenHours("10:00-22:00")
+                .setCreateTime(LocalDateTime.now())
+                .setUpdateTime(LocalDateTime.now());
+    }
+
+    private static ShopType shopType() {
+        return new ShopType()
+                .setId(1L)
+                .setName("美食")
+                .setIcon("/types/ms.png")
+                .setSort(1)
+                .setCreateTime(LocalDateTime.now())
+                .setUpdateTime(LocalDateTime.now());
+    }
+
+    private static Blog blog() {
+        return new Blog()
+                .setId(4L)
+                .setShopId(4L)
+                .setUserId(2L)
+                .setTitle("无尽浪漫的夜晚丨在万花丛中摇晃着红酒杯🍷品战斧牛排🥩")
+                .setImages("/imgs/blogs/7/14/4771fefb-1a87-4252-816c-9f7ec41ffa4a.jpg,/imgs/blogs/4/10/2f07e3c9-ddce-482d-9ea7-c21450f8d7cd.jpg")
+                .setContent("生活就是一半烟火·一半诗意<br>手执烟火谋生活·心怀诗意以谋爱·<br>当然<br>\\r\\n男朋友给不了的浪漫要学会自己给🍒<br>")
+                .setLiked(1)
+                .setComments(104)
+                .setCreateTime(LocalDateTime.now())
+                .setUpdateTime(LocalDateTime.now());
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(CacheCodecBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,68 @@
+package com.hmdp.bench;
+
+import com.hmdp.utils.RedisIdWorker;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * id生成器基准测试 对比每次INCR(redis)、号段(segment)和snowflake的吞吐量
+ * 需要本地redis 地址和密码通过 -Dredis.host -Dredis.port -Dredis.password 指定
+ * 运行main方法 或 mvn test-compile 后通过jmh执行
+ *
+ * @author CHEN
+ * @date 2022/11/02
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(8)
+@Fork(1)
+@State(Scope.Benchmark)
+public class IdWorkerBenchmark {
+    @Param({"redis", "segment", "snowflake"})
+    private String mode;
+
+    private LettuceConnectionFactory connectionFactory;
+    private RedisIdWorker redisIdWorker;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        RedisStandaloneConfiguration configuration = new RedisStandaloneConfiguration(
+                System.getProperty("redis.host", "localhost")
+                , Integer.getInteger("redis.port", 6379));
+        //没有密码时不设置
+        configuration.setPassword(System.getProperty("redis.password"));
+        connectionFactory = new LettuceConnectionFactory(configuration);
+        connectionFactory.afterPropertiesSet();
+        StringRedisTemplate stringRedisTemplate = new StringRedisTemplate(connectionFactory);
+        redisIdWorker = new RedisIdWorker(stringRedisTemplate, mode, 1000, 1, 30000);
+        redisIdWorker.init();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        redisIdWorker.destroy();
+        connectionFactory.destroy();
+    }
+
+    @Benchmark
+    public Long nextId() {
+        return redisIdWorker.nextId("benchmark");
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(IdWorkerBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}